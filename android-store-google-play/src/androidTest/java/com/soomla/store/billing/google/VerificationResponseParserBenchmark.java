@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares <code>VerificationResponseParser</code> against what <code>SoomlaGpVerification</code>
+ * used to do: buffer the whole response and build a <code>JSONObject</code> out of it.
+ * Needs the real <code>android.util.JsonReader</code>, so it runs on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VerificationResponseParserBenchmark {
+
+    private static final String TAG = "SOOMLA VerificationResponseParserBenchmark";
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 2000;
+
+    private static final String VERIFY_RESPONSE = "{\"verified\":false,\"reason\":{\"error\":{" +
+            "\"errors\":[{\"domain\":\"androidpublisher\",\"reason\":\"purchaseTokenDoesNotMatchProductId\"," +
+            "\"message\":\"The purchase token does not match the product ID.\",\"locationType\":\"parameter\"," +
+            "\"location\":\"token\"}],\"code\":400,\"message\":\"The purchase token does not match the product ID.\"}}," +
+            "\"purchase\":{\"kind\":\"androidpublisher#productPurchase\",\"purchaseTimeMillis\":\"1469436862000\"," +
+            "\"purchaseState\":0,\"consumptionState\":0,\"developerPayload\":\"payload\"}}";
+
+    private static final String TOKEN_RESPONSE = "{\"access_token\":\"ya29.Ci8tA0xZtY3ZDqY7rT1n4tLOk1ZfgUu1mKJ2h3zP" +
+            "XHn8bEJrTWq5wJ0Y8cA3sQ\",\"token_type\":\"Bearer\",\"expires_in\":3600,\"id_token\":\"eyJhbGciOiJSUzI1NiIs" +
+            "ImtpZCI6IjY0ZTQ3OWZjNTk2ZjE0ZGM3MTAxNzA4M2NmNTQ4NTFlZTI1MzQ1ZDIifQ.eyJpc3MiOiJhY2NvdW50cy5nb29nbGUuY29tIiwi" +
+            "YXVkIjoiMTIzNDU2Nzg5MC5hcHBzLmdvb2dsZXVzZXJjb250ZW50LmNvbSIsInN1YiI6IjEwOTg3NjU0MzIxMDk4NzY1NDMyMSIsImlhdCI6" +
+            "MTQ2OTQzNjg2MiwiZXhwIjoxNDY5NDQwNDYyfQ.c2lnbmF0dXJlLXNpZ25hdHVyZS1zaWduYXR1cmUtc2lnbmF0dXJl\"}";
+
+    @Test
+    public void verifyResponse() throws Exception {
+        byte[] body = VERIFY_RESPONSE.getBytes("UTF-8");
+
+        VerificationResponseParser.VerifyResponse parsed =
+                VerificationResponseParser.parseVerifyResponse(new ByteArrayInputStream(body));
+        JSONObject legacy = new JSONObject(readAll(new ByteArrayInputStream(body)));
+        assertEquals(legacy.optBoolean("verified", false), parsed.verified);
+        assertEquals(legacy.getJSONObject("reason").getJSONObject("error").getString("message"), parsed.reason);
+
+        long streamNanos = Long.MAX_VALUE;
+        long jsonNanos = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            int checksum = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                checksum += VerificationResponseParser.parseVerifyResponse(new ByteArrayInputStream(body)).reason.length();
+            }
+            long streamTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int jsonChecksum = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                JSONObject jsonObject = new JSONObject(readAll(new ByteArrayInputStream(body)));
+                jsonChecksum += jsonObject.getJSONObject("reason").getJSONObject("error").getString("message").length();
+            }
+            long jsonTime = System.nanoTime() - start;
+
+            assertEquals(jsonChecksum, checksum);
+            if (round >= WARMUP_ROUNDS) {
+                streamNanos = Math.min(streamNanos, streamTime);
+                jsonNanos = Math.min(jsonNanos, jsonTime);
+            }
+        }
+
+        report("verify response", streamNanos, jsonNanos);
+    }
+
+    @Test
+    public void tokenResponse() throws Exception {
+        byte[] body = TOKEN_RESPONSE.getBytes("UTF-8");
+
+        String parsed = VerificationResponseParser.parseTokenResponse(new ByteArrayInputStream(body));
+        assertEquals(new JSONObject(readAll(new ByteArrayInputStream(body))).optString("access_token"), parsed);
+
+        long streamNanos = Long.MAX_VALUE;
+        long jsonNanos = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            int checksum = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                checksum += VerificationResponseParser.parseTokenResponse(new ByteArrayInputStream(body)).length();
+            }
+            long streamTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int jsonChecksum = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                jsonChecksum += new JSONObject(readAll(new ByteArrayInputStream(body))).optString("access_token").length();
+            }
+            long jsonTime = System.nanoTime() - start;
+
+            assertEquals(jsonChecksum, checksum);
+            if (round >= WARMUP_ROUNDS) {
+                streamNanos = Math.min(streamNanos, streamTime);
+                jsonNanos = Math.min(jsonNanos, jsonTime);
+            }
+        }
+
+        report("token response", streamNanos, jsonNanos);
+    }
+
+    private static void report(String name, long streamNanos, long jsonNanos) {
+        String result = String.format("%s x%d: JsonReader %dus, JSONObject %dus",
+                name, ITERATIONS, streamNanos / 1000, jsonNanos / 1000);
+        Log.i(TAG, result);
+        assertTrue(result, streamNanos < jsonNanos);
+    }
+
+    // the way the responses were read before VerificationResponseParser
+    private static String readAll(InputStream inputStream) throws Exception {
+        StringBuilder stringBuilder = new StringBuilder();
+        Reader reader = new BufferedReader(new InputStreamReader(inputStream));
+        final char[] buffer = new char[1024];
+        int bytesRead;
+        while ((bytesRead = reader.read(buffer, 0, buffer.length)) > 0) {
+            stringBuilder.append(buffer, 0, bytesRead);
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.os.RemoteException;
+import com.android.vending.billing.IInAppBillingService;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.billing.IabException;
+import com.soomla.store.billing.IabResult;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs billing service calls with a deadline.
+ *
+ * Each call runs on a worker thread while the calling thread waits for it, for up to the
+ * configured timeout. A call that doesn't return in time (e.g. because the Play Store process
+ * hung) fails with <code>GoogleIabHelper.IABHELPER_CALL_TIMEOUT</code>, and the calling thread
+ * is released even though the worker stays blocked in the binder call.
+ */
+public class BillingCallExecutor {
+
+    /**
+     * A single call to the billing service.
+     */
+    public interface BillingCall<T> {
+        T call(IInAppBillingService service) throws RemoteException;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param timeoutMillis the deadline of every call.
+     */
+    public BillingCallExecutor(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs the given call and waits for its result.
+     *
+     * @param name the name of the call, for logs and errors.
+     * @param service the billing service to call.
+     * @param call the call to run.
+     * @param signal the cancellation signal of the operation, can be null.
+     * @return the result of the call.
+     * @throws RemoteException if the call threw it.
+     * @throws IabException if the service isn't connected, the call timed out, the
+     *     operation was canceled or the executor was shut down.
+     */
+    public <T> T execute(String name, final IInAppBillingService service, final BillingCall<T> call,
+                         IabCancellationSignal signal) throws RemoteException, IabException {
+        if (signal != null && signal.isCanceled()) {
+            throw new IabException(GoogleIabHelper.IABHELPER_CANCELED, name + " was canceled.");
+        }
+        if (service == null) {
+            throw new IabException(GoogleIabHelper.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE,
+                    name + " failed: billing service isn't connected.");
+        }
+
+        Future<T> future;
+        try {
+            future = mExecutor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return call.call(service);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the helper was disposed while the operation was still running
+            throw new IabException(GoogleIabHelper.IABHELPER_CANCELED, name + " was canceled, the helper is disposed.");
+        }
+        if (signal != null) {
+            signal.addCall(future);
+        }
+
+        try {
+            return future.get(mTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            SoomlaUtils.LogError(TAG, name + " didn't return within " + mTimeoutMillis + "ms.");
+            throw new IabException(GoogleIabHelper.IABHELPER_CALL_TIMEOUT, name + " timed out.");
+        } catch (CancellationException e) {
+            throw new IabException(GoogleIabHelper.IABHELPER_CANCELED, name + " was canceled.");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IabException(GoogleIabHelper.IABHELPER_CANCELED, name + " was interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IabException(IabResult.IABHELPER_UNKNOWN_ERROR, name + " failed: " + cause);
+        } finally {
+            if (signal != null) {
+                signal.removeCall(future);
+            }
+        }
+    }
+
+    public void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public long getTimeout() {
+        return mTimeoutMillis;
+    }
+
+    /**
+     * Stops the worker threads once the calls in flight return. Calls made afterwards fail
+     * with <code>GoogleIabHelper.IABHELPER_CANCELED</code>.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA BillingCallExecutor";
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private volatile long mTimeoutMillis;
+}
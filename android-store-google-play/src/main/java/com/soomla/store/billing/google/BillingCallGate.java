@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.os.SystemClock;
+
+/**
+ * Gives purchase-critical billing calls (buy intents and consumptions) priority over
+ * background ones (SKU details chunks and purchases pages).
+ *
+ * Urgent calls are wrapped with {@link #enterUrgent()} and {@link #exitUrgent()}. Background
+ * loops call {@link #yieldToUrgent()} before each of their billing calls, which waits while
+ * urgent calls are in flight. The wait is capped so background work is never starved.
+ */
+public class BillingCallGate {
+
+    /**
+     * Constructor
+     *
+     * @param maxYieldMillis the longest a background call waits for urgent calls.
+     */
+    public BillingCallGate(long maxYieldMillis) {
+        mMaxYieldMillis = maxYieldMillis;
+    }
+
+    public synchronized void enterUrgent() {
+        mUrgentCalls++;
+    }
+
+    public synchronized void exitUrgent() {
+        if (mUrgentCalls > 0 && --mUrgentCalls == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until no urgent call is in flight, or until the max yield time passes.
+     */
+    public synchronized void yieldToUrgent() {
+        if (mUrgentCalls == 0) {
+            return;
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + mMaxYieldMillis;
+        long remaining = mMaxYieldMillis;
+        while (mUrgentCalls > 0 && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+    }
+
+
+    /** Private Members **/
+
+    private final long mMaxYieldMillis;
+    private int mUrgentCalls = 0;
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.SoomlaConfig;
+import com.soomla.SoomlaUtils;
+
+/**
+ * Logging for the billing hot paths (purchase queries, SKU details chunks and purchase results).
+ *
+ * Messages are templates where each <code>{}</code> is replaced by the next argument. Debug
+ * messages are only built when debug logging is on, and the fixed-arity overloads avoid the
+ * varargs array, so a disabled debug call allocates nothing (as long as its arguments are
+ * already objects). Arguments that are expensive to get should be guarded with
+ * {@link #isDebugEnabled()}.
+ */
+public final class BillingLog {
+
+    private BillingLog() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return SoomlaConfig.logDebug;
+    }
+
+    public static void debug(String tag, String message) {
+        if (SoomlaConfig.logDebug) {
+            SoomlaUtils.LogDebug(tag, message);
+        }
+    }
+
+    public static void debug(String tag, String template, Object arg) {
+        if (SoomlaConfig.logDebug) {
+            SoomlaUtils.LogDebug(tag, format(template, arg, null, null, 1));
+        }
+    }
+
+    public static void debug(String tag, String template, Object arg1, Object arg2) {
+        if (SoomlaConfig.logDebug) {
+            SoomlaUtils.LogDebug(tag, format(template, arg1, arg2, null, 2));
+        }
+    }
+
+    public static void debug(String tag, String template, Object arg1, Object arg2, Object arg3) {
+        if (SoomlaConfig.logDebug) {
+            SoomlaUtils.LogDebug(tag, format(template, arg1, arg2, arg3, 3));
+        }
+    }
+
+    /**
+     * Replaces the first <code>count</code> placeholders in the template with the arguments.
+     */
+    private static String format(String template, Object arg1, Object arg2, Object arg3, int count) {
+        StringBuilder sb = new StringBuilder(template.length() + 32);
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int placeholder = template.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            sb.append(template, start, placeholder);
+            sb.append(i == 0 ? arg1 : (i == 1 ? arg2 : arg3));
+            start = placeholder + 2;
+        }
+        sb.append(template, start, template.length());
+        return sb.toString();
+    }
+}
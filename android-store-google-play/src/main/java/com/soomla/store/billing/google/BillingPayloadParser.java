@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+/**
+ * Streaming parser for the flat JSON objects Google Play returns in
+ * <code>INAPP_PURCHASE_DATA_LIST</code> and <code>DETAILS_LIST</code>.
+ *
+ * Reads the top-level fields of an object in a single pass over the raw string, without
+ * building a <code>JSONObject</code>. Values of fields the caller didn't ask for are skipped
+ * without being copied, and string values without escapes are taken as substrings of the
+ * payload. The parser reuses its buffer across objects, so one instance should be used for a
+ * whole page of items. Instances aren't thread-safe.
+ */
+class BillingPayloadParser {
+
+    /**
+     * Parses the given top-level fields of a JSON object.
+     *
+     * @param json a serialized JSON object.
+     * @param fields the names of the fields to read.
+     * @param strings receives the string values, at the index of their field in
+     *     <code>fields</code>. Fields that are missing or aren't strings are set to null.
+     * @param numbers receives the integral values, at the index of their field in
+     *     <code>fields</code>. May be null if no numeric field is expected. Like
+     *     <code>JSONObject.optLong</code>, numbers sent as strings are converted, and fields
+     *     that are missing or aren't numbers are set to 0.
+     * @throws IllegalArgumentException if <code>json</code> isn't a well-formed JSON object.
+     */
+    void parse(String json, String[] fields, String[] strings, long[] numbers) {
+        for (int k = 0; k < fields.length; k++) {
+            strings[k] = null;
+            if (numbers != null) {
+                numbers[k] = 0;
+            }
+        }
+
+        mJson = json;
+        mLength = json.length();
+        try {
+            mPos = skipWhitespace(0);
+            expect('{');
+            mPos = skipWhitespace(mPos);
+            if (peek() == '}') {
+                return;
+            }
+
+            while (true) {
+                if (peek() != '"') {
+                    throw new IllegalArgumentException("Expected a key at " + mPos);
+                }
+                int field = readKey(fields);
+                mPos = skipWhitespace(mPos);
+                expect(':');
+                mPos = skipWhitespace(mPos);
+
+                char c = peek();
+                if (c == '"') {
+                    if (field >= 0) {
+                        strings[field] = readString();
+                        if (numbers != null) {
+                            numbers[field] = toNumber(strings[field]);
+                        }
+                    } else {
+                        skipString();
+                    }
+                } else if (field >= 0 && numbers != null && (c == '-' || (c >= '0' && c <= '9'))) {
+                    numbers[field] = readNumber();
+                } else {
+                    skipValue();
+                }
+
+                mPos = skipWhitespace(mPos);
+                c = peek();
+                if (c == '}') {
+                    return;
+                }
+                expect(',');
+                mPos = skipWhitespace(mPos);
+            }
+        } finally {
+            mJson = null;
+        }
+    }
+
+    private char peek() {
+        if (mPos >= mLength) {
+            throw new IllegalArgumentException("Unterminated JSON object.");
+        }
+        return mJson.charAt(mPos);
+    }
+
+    private void expect(char expected) {
+        if (peek() != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + mPos);
+        }
+        mPos++;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < mLength && Character.isWhitespace(mJson.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Reads the key at the current position and returns its index in <code>fields</code>,
+     * or -1 if it isn't one of them.
+     */
+    private int readKey(String[] fields) {
+        int start = mPos + 1;
+        skipString();
+        int end = mPos - 1;
+        boolean escaped = false;
+        for (int i = start; i < end && !escaped; i++) {
+            escaped = mJson.charAt(i) == '\\';
+        }
+
+        if (escaped) {
+            mBuffer.setLength(0);
+            unescape(start, end);
+            for (int k = 0; k < fields.length; k++) {
+                if (fields[k].contentEquals(mBuffer)) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        int length = end - start;
+        for (int k = 0; k < fields.length; k++) {
+            if (fields[k].length() == length && mJson.regionMatches(start, fields[k], 0, length)) {
+                return k;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the string at the current position and moves past its closing quote.
+     */
+    private String readString() {
+        int start = mPos + 1;
+        int end = start;
+        boolean escaped = false;
+        while (true) {
+            if (end >= mLength) {
+                throw new IllegalArgumentException("Unterminated JSON string.");
+            }
+            char c = mJson.charAt(end);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                escaped = true;
+                end++;
+            }
+            end++;
+        }
+        mPos = end + 1;
+
+        if (!escaped) {
+            return mJson.substring(start, end);
+        }
+        mBuffer.setLength(0);
+        unescape(start, end);
+        return mBuffer.toString();
+    }
+
+    /**
+     * Moves past the string at the current position without copying it.
+     */
+    private void skipString() {
+        int i = mPos + 1;
+        while (i < mLength) {
+            char c = mJson.charAt(i);
+            if (c == '"') {
+                mPos = i + 1;
+                return;
+            }
+            i += c == '\\' ? 2 : 1;
+        }
+        throw new IllegalArgumentException("Unterminated JSON string.");
+    }
+
+    /**
+     * Appends the unescaped characters between <code>start</code> and <code>end</code>
+     * to the buffer.
+     */
+    private void unescape(int start, int end) {
+        int i = start;
+        while (i < end) {
+            char c = mJson.charAt(i++);
+            if (c != '\\') {
+                mBuffer.append(c);
+                continue;
+            }
+
+            char escaped = mJson.charAt(i++);
+            switch (escaped) {
+                case 'n': c = '\n'; break;
+                case 't': c = '\t'; break;
+                case 'r': c = '\r'; break;
+                case 'b': c = '\b'; break;
+                case 'f': c = '\f'; break;
+                case 'u':
+                    if (i + 4 > end) {
+                        throw new IllegalArgumentException("Bad unicode escape at " + i);
+                    }
+                    int code = 0;
+                    for (int j = 0; j < 4; j++) {
+                        int digit = Character.digit(mJson.charAt(i + j), 16);
+                        if (digit < 0) {
+                            throw new IllegalArgumentException("Bad unicode escape at " + i);
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    c = (char) code;
+                    i += 4;
+                    break;
+                default: c = escaped; break;
+            }
+            mBuffer.append(c);
+        }
+    }
+
+    /**
+     * Reads the number at the current position. Fractions are truncated.
+     */
+    private long readNumber() {
+        int start = mPos;
+        boolean negative = peek() == '-';
+        if (negative) {
+            mPos++;
+        }
+
+        long value = 0;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            mPos++;
+        }
+
+        if (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                // not in the billing schemas, so the slow path is fine
+                skipValue();
+                try {
+                    return (long) Double.parseDouble(mJson.substring(start, mPos).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad number at " + start);
+                }
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Converts a number sent as a string, the way <code>JSONObject.optLong</code> does, or
+     * returns 0 if it isn't one.
+     */
+    private static long toNumber(String value) {
+        // most string fields aren't numbers (SKUs may start with digits, prices with a
+        // currency sign or digits), don't pay for an exception on each of them
+        boolean digits = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E' && !Character.isWhitespace(c)) {
+                return 0;
+            }
+        }
+        if (!digits) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException e2) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Moves past the non-string value (number, literal, object or array) at the current position.
+     */
+    private void skipValue() {
+        int depth = 0;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '"') {
+                skipString();
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private final StringBuilder mBuffer = new StringBuilder();
+    private String mJson;
+    private int mLength;
+    private int mPos;
+}
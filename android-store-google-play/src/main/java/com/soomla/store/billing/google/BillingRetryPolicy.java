@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.store.billing.IabResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether (and when) a failed billing service call is retried.
+ *
+ * A call is retried if its response code is in the retryable set and it didn't use up its
+ * attempts. The delay before each retry grows exponentially from <code>baseDelay</code> up to
+ * <code>maxDelay</code>, with equal jitter.
+ */
+public class BillingRetryPolicy {
+
+    /**
+     * The policy used when none is set: 3 attempts, 250ms to 2s apart, retrying when the
+     * service is unavailable, on general errors and on remote exceptions.
+     */
+    public static final BillingRetryPolicy DEFAULT = new BillingRetryPolicy(3, 250, 2000,
+            new HashSet<Integer>(Arrays.asList(
+                    GoogleIabHelper.BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE,
+                    IabResult.BILLING_RESPONSE_RESULT_ERROR,
+                    IabResult.IABHELPER_REMOTE_EXCEPTION)));
+
+    /**
+     * A policy that never retries.
+     */
+    public static final BillingRetryPolicy NONE = new BillingRetryPolicy(1, 0, 0, Collections.<Integer>emptySet());
+
+    /**
+     * Constructor
+     *
+     * @param maxAttempts the maximum number of attempts of a call, including the first one.
+     * @param baseDelay the delay before the first retry (in milliseconds).
+     * @param maxDelay the maximum delay between retries (in milliseconds).
+     * @param retryableCodes the response codes that are worth retrying.
+     */
+    public BillingRetryPolicy(int maxAttempts, long baseDelay, long maxDelay, Set<Integer> retryableCodes) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRetryableCodes = Collections.unmodifiableSet(new HashSet<Integer>(retryableCodes));
+    }
+
+    /**
+     * Checks whether a call should be retried.
+     *
+     * @param responseCode the response code of the failed attempt.
+     * @param attempt the number of the failed attempt, starting at 1.
+     */
+    public boolean shouldRetry(int responseCode, int attempt) {
+        return attempt < mMaxAttempts && mRetryableCodes.contains(responseCode);
+    }
+
+    /**
+     * Returns how long to wait before retrying.
+     *
+     * @param attempt the number of the failed attempt, starting at 1.
+     * @return the delay (in milliseconds).
+     */
+    public long getDelay(int attempt) {
+        long delay = Math.min(mBaseDelay << Math.min(attempt - 1, MAX_DOUBLINGS), mMaxDelay);
+        // equal jitter: keep half the delay, randomize the other half
+        return delay / 2 + (long) (sRandom.nextDouble() * (delay / 2));
+    }
+
+
+    /** Setters and Getters **/
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public Set<Integer> getRetryableCodes() {
+        return mRetryableCodes;
+    }
+
+
+    /** Private Members **/
+
+    private static final int MAX_DOUBLINGS = 16;
+    private static final Random sRandom = new Random();
+
+    private final int mMaxAttempts;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Set<Integer> mRetryableCodes;
+}
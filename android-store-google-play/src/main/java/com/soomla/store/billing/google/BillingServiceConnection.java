@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import com.android.vending.billing.IInAppBillingService;
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+
+import java.util.List;
+
+/**
+ * Keeps the connection to the Google Play billing service.
+ *
+ * It watches the service's binder with <code>linkToDeath</code> and rebinds when the Play Store
+ * process dies, e.g. while it's being updated. Operations that need the service while it's
+ * reconnecting can park in {@link #awaitService(long)} until the new stub is ready.
+ */
+public class BillingServiceConnection implements ServiceConnection, IBinder.DeathRecipient {
+
+    /**
+     * Notified when the service connects.
+     */
+    public interface Listener {
+        /**
+         * Called on the main thread when the service connects.
+         *
+         * @param service the billing service.
+         * @param reconnected true if the service was connected before and this is a reconnection.
+         */
+        void onServiceConnected(IInAppBillingService service, boolean reconnected);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param listener notified when the service connects.
+     */
+    public BillingServiceConnection(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Binds to the billing service.
+     *
+     * @return false if there's no billing service on the device.
+     */
+    public boolean bind() {
+        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
+        serviceIntent.setPackage("com.android.vending");
+        List<ResolveInfo> intentServices = SoomlaApp.getAppContext().getPackageManager().queryIntentServices(serviceIntent, 0);
+        if (intentServices == null || intentServices.isEmpty()) {
+            return false;
+        }
+
+        synchronized (this) {
+            mBound = SoomlaApp.getAppContext().bindService(serviceIntent, this, Context.BIND_AUTO_CREATE);
+            return mBound;
+        }
+    }
+
+    /**
+     * Unbinds from the billing service, for good. Parked operations are released.
+     */
+    public synchronized void unbind() {
+        mDisposed = true;
+        unlinkFromDeath();
+        if (mBound && SoomlaApp.getAppContext() != null) {
+            SoomlaApp.getAppContext().unbindService(this);
+        }
+        mBound = false;
+        mService = null;
+        notifyAll();
+    }
+
+    /**
+     * Returns the billing service, or null if it's not connected right now.
+     */
+    public synchronized IInAppBillingService getService() {
+        return mService;
+    }
+
+    /**
+     * Returns the billing service, waiting for it to (re)connect if needed.
+     * Don't call from the main thread, as the connection is delivered on it.
+     *
+     * @param timeoutMillis the longest to wait.
+     * @return the billing service, or null if it didn't connect in time or was unbound.
+     */
+    public synchronized IInAppBillingService awaitService(long timeoutMillis) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (mService == null && !mDisposed && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+        return mService;
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder binder) {
+        IInAppBillingService service;
+        boolean reconnected;
+        synchronized (this) {
+            if (mDisposed) {
+                return;
+            }
+            unlinkFromDeath();
+            mBinder = binder;
+            try {
+                binder.linkToDeath(this, 0);
+            } catch (RemoteException e) {
+                SoomlaUtils.LogError(TAG, "Billing service died while connecting.");
+                mBinder = null;
+                scheduleRebind();
+                return;
+            }
+            mService = IInAppBillingService.Stub.asInterface(binder);
+            service = mService;
+            reconnected = mConnectedBefore;
+            mConnectedBefore = true;
+            notifyAll();
+        }
+
+        SoomlaUtils.LogDebug(TAG, reconnected ? "Billing service reconnected." : "Billing service connected.");
+        mListener.onServiceConnected(service, reconnected);
+    }
+
+    @Override
+    public synchronized void onServiceDisconnected(ComponentName name) {
+        // the system rebinds by itself, operations wait for it in awaitService
+        SoomlaUtils.LogDebug(TAG, "Billing service disconnected.");
+        unlinkFromDeath();
+        mService = null;
+    }
+
+    @Override
+    public void binderDied() {
+        synchronized (this) {
+            if (mDisposed) {
+                return;
+            }
+            SoomlaUtils.LogError(TAG, "Billing service died, rebinding.");
+            mBinder = null;
+            mService = null;
+        }
+        scheduleRebind();
+    }
+
+    private void scheduleRebind() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BillingServiceConnection.this) {
+                    if (mDisposed || mService != null) {
+                        return;
+                    }
+                    if (mBound) {
+                        SoomlaApp.getAppContext().unbindService(BillingServiceConnection.this);
+                        mBound = false;
+                    }
+                }
+                if (!bind()) {
+                    SoomlaUtils.LogError(TAG, "Couldn't rebind to the billing service.");
+                }
+            }
+        });
+    }
+
+    private void unlinkFromDeath() {
+        if (mBinder != null) {
+            mBinder.unlinkToDeath(this, 0);
+            mBinder = null;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA BillingServiceConnection";
+
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private IInAppBillingService mService;
+    private IBinder mBinder;
+    private boolean mBound = false;
+    private boolean mConnectedBefore = false;
+    private boolean mDisposed = false;
+}
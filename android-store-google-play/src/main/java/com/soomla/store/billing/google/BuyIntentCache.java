@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.app.PendingIntent;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short-lived cache of buy intents fetched ahead of a purchase (see
+ * {@link GoogleIabHelper#prefetchBuyIntent}), so the purchase flow can skip the
+ * <code>getBuyIntent</code> call.
+ *
+ * Entries are keyed by item type, SKU and developer payload, and each one is handed out once.
+ * Only a few entries are kept, the oldest ones are dropped first.
+ */
+public class BuyIntentCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+    public static final int DEFAULT_MAX_ENTRIES = 4;
+
+    /**
+     * Constructor
+     *
+     * @param ttlMillis how long a prefetched buy intent may be used.
+     * @param maxEntries the max number of buy intents kept.
+     */
+    public BuyIntentCache(long ttlMillis, final int maxEntries) {
+        mTtlMillis = ttlMillis;
+        mEntries = new LinkedHashMap<String, CachedIntent>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedIntent> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized void put(String itemType, String sku, String extraData, PendingIntent buyIntent) {
+        String key = key(itemType, sku, extraData);
+        // re-insert so it counts as the newest
+        mEntries.remove(key);
+        mEntries.put(key, new CachedIntent(sku, buyIntent, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Removes and returns the buy intent of the given purchase.
+     *
+     * @return the buy intent, or null if none was prefetched or it's older than the TTL.
+     */
+    public synchronized PendingIntent take(String itemType, String sku, String extraData) {
+        CachedIntent entry = mEntries.remove(key(itemType, sku, extraData));
+        return entry != null && isFresh(entry) ? entry.mBuyIntent : null;
+    }
+
+    /**
+     * Checks if a fresh buy intent of the given purchase is in the cache.
+     */
+    public synchronized boolean contains(String itemType, String sku, String extraData) {
+        CachedIntent entry = mEntries.get(key(itemType, sku, extraData));
+        return entry != null && isFresh(entry);
+    }
+
+    /**
+     * Drops the buy intents of the given SKU, e.g. after it was bought.
+     */
+    public synchronized void invalidate(String sku) {
+        Iterator<CachedIntent> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().mSku.equals(sku)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private boolean isFresh(CachedIntent entry) {
+        return SystemClock.elapsedRealtime() - entry.mFetchedAt < mTtlMillis;
+    }
+
+    private static String key(String itemType, String sku, String extraData) {
+        return itemType + "|" + sku + "|" + (extraData != null ? extraData : "");
+    }
+
+    private static class CachedIntent {
+        CachedIntent(String sku, PendingIntent buyIntent, long fetchedAt) {
+            mSku = sku;
+            mBuyIntent = buyIntent;
+            mFetchedAt = fetchedAt;
+        }
+
+        private final String mSku;
+        private final PendingIntent mBuyIntent;
+        private final long mFetchedAt;
+    }
+
+
+    /** Private Members **/
+
+    private final long mTtlMillis;
+    private final LinkedHashMap<String, CachedIntent> mEntries;
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executors for delivering the callbacks of async billing operations.
+ */
+public class CallbackExecutors {
+
+    /**
+     * Runs callbacks right away, on the thread that finished the operation.
+     * Callbacks delivered this way must not touch the UI.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Returns an executor that runs callbacks on the main thread.
+     */
+    public static Executor mainThread() {
+        return forLooper(Looper.getMainLooper());
+    }
+
+    /**
+     * Returns an executor that runs callbacks on the calling thread's looper, or on the main
+     * thread if the calling thread has no looper.
+     */
+    public static Executor currentThread() {
+        Looper looper = Looper.myLooper();
+        return forLooper(looper != null ? looper : Looper.getMainLooper());
+    }
+
+    /**
+     * Returns an executor that runs callbacks on the given looper.
+     *
+     * @param looper the looper to run callbacks on.
+     */
+    public static Executor forLooper(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.billing.IabSkuDetails;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact, read-only store of fetched SKU details, for catalogs with thousands of SKUs.
+ *
+ * SKUs are kept in a sorted array and looked up by binary search. Item types, currency codes,
+ * formatted prices and titles are deduplicated across SKUs. Prices in micros are kept in a
+ * primitive array. Google Play's JSON of every SKU is kept verbatim, packed into a single UTF-8
+ * block and decoded only when asked for. Descriptions, usually the largest field, are read from
+ * it on demand instead of being kept on their own.
+ *
+ * The catalog is built once per fetch, along with price-sorted indexes of all the SKUs, of the
+ * SKUs of each item type and of the SKUs of each currency, so store screens can filter and sort
+ * without scanning the whole catalog.
+ *
+ * The lists of SKU details the catalog returns are views over its arrays: each
+ * <code>IabSkuDetails</code> is a small object created when the list element is read, which
+ * reads its fields from the catalog.
+ */
+public class CompactSkuCatalog {
+
+    /**
+     * Builds a catalog from fetched SKU details. Duplicate SKUs keep their last details.
+     *
+     * @param skuDetails the fetched SKU details.
+     */
+    public static CompactSkuCatalog fromSkuDetails(List<IabSkuDetails> skuDetails) {
+        Builder builder = new Builder();
+        for (IabSkuDetails details : skuDetails) {
+            builder.add(details);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Collects SKU details for a catalog. The description isn't read, so it stays unparsed in
+     * <code>LazyIabSkuDetails</code>. Details without JSON get it built from their fields.
+     * Instances aren't thread-safe.
+     */
+    public static class Builder {
+
+        /**
+         * Adds the details of a SKU. Duplicate SKUs keep their last details.
+         *
+         * @param details the fetched SKU details.
+         */
+        public Builder add(IabSkuDetails details) {
+            String sku = details.getSku();
+            String itemType = details.getItemType();
+            String price = details.getPrice();
+            String title = details.getTitle();
+            long priceMicros = details.getPriceMicros();
+            String currencyCode = details.getCurrencyCode();
+            String json = details.getJson();
+            if (json == null) {
+                json = toJson(details);
+            }
+
+            Integer existing = mPositions.get(sku);
+            int position = existing != null ? existing : mSkus.size();
+            short itemTypeIndex = (short) indexOf(mItemTypes, itemType);
+            short currencyIndex = (short) indexOf(mCurrencies, currencyCode);
+            byte[] jsonBytes = json.getBytes(UTF_8);
+            if (existing == null) {
+                mPositions.put(sku, position);
+                mSkus.add(sku);
+                mPrices.add(dedupe(mStringTable, price));
+                mTitles.add(dedupe(mStringTable, title));
+                mJsons.add(jsonBytes);
+                mItemTypeIndexes = grow(mItemTypeIndexes, position);
+                mCurrencyIndexes = grow(mCurrencyIndexes, position);
+                mPriceMicros = grow(mPriceMicros, position);
+            } else {
+                mPrices.set(position, dedupe(mStringTable, price));
+                mTitles.set(position, dedupe(mStringTable, title));
+                mJsons.set(position, jsonBytes);
+            }
+            mItemTypeIndexes[position] = itemTypeIndex;
+            mCurrencyIndexes[position] = currencyIndex;
+            mPriceMicros[position] = priceMicros;
+            return this;
+        }
+
+        /**
+         * Builds the catalog of the SKU details added so far.
+         */
+        public CompactSkuCatalog build() {
+            return new CompactSkuCatalog(this);
+        }
+
+        private static short[] grow(short[] array, int position) {
+            return position < array.length ? array : Arrays.copyOf(array, Math.max(16, array.length * 2));
+        }
+
+        private static long[] grow(long[] array, int position) {
+            return position < array.length ? array : Arrays.copyOf(array, Math.max(16, array.length * 2));
+        }
+
+        /**
+         * Builds Google Play's JSON of SKU details that were created from their fields.
+         */
+        private static String toJson(IabSkuDetails details) {
+            JSONObject json = new JSONObject();
+            try {
+                json.put("productId", details.getSku());
+                json.put("type", details.getType() != null ? details.getType() : details.getItemType());
+                json.put("price", details.getPrice());
+                json.put("price_amount_micros", details.getPriceMicros());
+                json.put("price_currency_code", details.getCurrencyCode());
+                json.put("title", details.getTitle());
+                json.put("description", details.getDescription() != null ? details.getDescription() : "");
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't build the JSON of " + details.getSku() + ": " + e.getMessage());
+            }
+            return json.toString();
+        }
+
+        private final Map<String, Integer> mPositions = new HashMap<String, Integer>();
+        private final Map<String, String> mStringTable = new HashMap<String, String>();
+        private final List<String> mItemTypes = new ArrayList<String>();
+        private final List<String> mCurrencies = new ArrayList<String>();
+        private final List<String> mSkus = new ArrayList<String>();
+        private final List<String> mPrices = new ArrayList<String>();
+        private final List<String> mTitles = new ArrayList<String>();
+        private final List<byte[]> mJsons = new ArrayList<byte[]>();
+        private short[] mItemTypeIndexes = new short[0];
+        private short[] mCurrencyIndexes = new short[0];
+        private long[] mPriceMicros = new long[0];
+    }
+
+    private CompactSkuCatalog(final Builder builder) {
+        int size = builder.mSkus.size();
+        Integer[] bySku = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            bySku[i] = i;
+        }
+        Arrays.sort(bySku, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return builder.mSkus.get(lhs).compareTo(builder.mSkus.get(rhs));
+            }
+        });
+
+        mSkus = new String[size];
+        mItemTypes = new short[size];
+        mCurrencies = new short[size];
+        mPriceMicros = new long[size];
+        mPrices = new String[size];
+        mTitles = new String[size];
+        mJsonOffsets = new int[size + 1];
+
+        int jsonsLength = 0;
+        for (byte[] json : builder.mJsons) {
+            jsonsLength += json.length;
+        }
+        mJsons = new byte[jsonsLength];
+
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            int from = bySku[i];
+            mSkus[i] = builder.mSkus.get(from);
+            mItemTypes[i] = builder.mItemTypeIndexes[from];
+            mCurrencies[i] = builder.mCurrencyIndexes[from];
+            mPriceMicros[i] = builder.mPriceMicros[from];
+            mPrices[i] = builder.mPrices.get(from);
+            mTitles[i] = builder.mTitles.get(from);
+
+            byte[] json = builder.mJsons.get(from);
+            mJsonOffsets[i] = offset;
+            System.arraycopy(json, 0, mJsons, offset, json.length);
+            offset += json.length;
+        }
+        mJsonOffsets[size] = offset;
+
+        mItemTypeTable = builder.mItemTypes.toArray(new String[builder.mItemTypes.size()]);
+        mCurrencyTable = builder.mCurrencies.toArray(new String[builder.mCurrencies.size()]);
+
+        mPriceIndex = new PriceIndex(sortByPrice(size));
+        mItemTypePriceIndexes = new PriceIndex[mItemTypeTable.length];
+        for (int t = 0; t < mItemTypeTable.length; t++) {
+            mItemTypePriceIndexes[t] = mPriceIndex.filter(mItemTypes, t);
+        }
+        mCurrencyPriceIndexes = new PriceIndex[mCurrencyTable.length];
+        for (int c = 0; c < mCurrencyTable.length; c++) {
+            mCurrencyPriceIndexes[c] = mPriceIndex.filter(mCurrencies, c);
+        }
+    }
+
+    /**
+     * Returns the indexes of all the SKUs, ordered by price and then by SKU.
+     */
+    private int[] sortByPrice(int size) {
+        Integer[] boxed = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            boxed[i] = i;
+        }
+        // ties keep SKU order, since the sort is stable and the SKUs are sorted
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = mPriceMicros[lhs];
+                long r = mPriceMicros[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = boxed[i];
+        }
+        return indexes;
+    }
+
+    private static int indexOf(List<String> table, String value) {
+        int index = table.indexOf(value);
+        if (index < 0) {
+            index = table.size();
+            table.add(value);
+        }
+        return index;
+    }
+
+    private static String dedupe(Map<String, String> strings, String value) {
+        if (value == null) {
+            return null;
+        }
+        String existing = strings.get(value);
+        if (existing == null) {
+            strings.put(value, value);
+            existing = value;
+        }
+        return existing;
+    }
+
+    /**
+     * Returns the index of the given SKU in the catalog, or -1 if it's not there.
+     */
+    public int indexOf(String sku) {
+        int index = Arrays.binarySearch(mSkus, sku);
+        return index >= 0 ? index : -1;
+    }
+
+    public boolean hasDetails(String sku) {
+        return indexOf(sku) >= 0;
+    }
+
+    /**
+     * Returns the details of the given SKU, or null if it's not in the catalog.
+     * A new view of the SKU is created on every call.
+     */
+    public IabSkuDetails getSkuDetails(String sku) {
+        int index = indexOf(sku);
+        return index >= 0 ? getSkuDetailsAt(index) : null;
+    }
+
+    /**
+     * Returns the details of the SKU at the given index.
+     * A new view of the SKU is created on every call.
+     */
+    public IabSkuDetails getSkuDetailsAt(int index) {
+        return new SkuDetailsView(index);
+    }
+
+    /**
+     * Returns the details of all the SKUs in the catalog, ordered by SKU.
+     */
+    public List<IabSkuDetails> getAllSkuDetails() {
+        return new SkuDetailsList(null, 0, mSkus.length);
+    }
+
+    /**
+     * Returns the details of all the SKUs in the catalog, ordered by price.
+     */
+    public List<IabSkuDetails> getSkuDetailsByPrice() {
+        return toSkuDetails(mPriceIndex, 0, mPriceIndex.size());
+    }
+
+    /**
+     * Returns the details of the SKUs of the given item type, ordered by price.
+     *
+     * @param itemType <code>IabHelper.ITEM_TYPE_INAPP</code> or <code>IabHelper.ITEM_TYPE_SUBS</code>.
+     */
+    public List<IabSkuDetails> getSkuDetailsByItemType(String itemType) {
+        PriceIndex index = lookup(mItemTypePriceIndexes, mItemTypeTable, itemType);
+        return index != null ? toSkuDetails(index, 0, index.size()) : new ArrayList<IabSkuDetails>();
+    }
+
+    /**
+     * Returns the details of the SKUs priced in the given currency, ordered by price.
+     *
+     * @param currencyCode an ISO 4217 currency code.
+     */
+    public List<IabSkuDetails> getSkuDetailsByCurrency(String currencyCode) {
+        PriceIndex index = lookup(mCurrencyPriceIndexes, mCurrencyTable, currencyCode);
+        return index != null ? toSkuDetails(index, 0, index.size()) : new ArrayList<IabSkuDetails>();
+    }
+
+    /**
+     * Returns the details of the SKUs whose price is within the given range, ordered by price.
+     * Found by binary search, so the cost depends on the number of matches, not on the size of
+     * the catalog.
+     *
+     * @param itemType the item type of the SKUs, or null for all item types.
+     * @param minPriceMicros the lowest price, inclusive.
+     * @param maxPriceMicros the highest price, inclusive.
+     */
+    public List<IabSkuDetails> getSkuDetailsInPriceRange(String itemType, long minPriceMicros, long maxPriceMicros) {
+        PriceIndex index = itemType == null ? mPriceIndex : lookup(mItemTypePriceIndexes, mItemTypeTable, itemType);
+        if (index == null || minPriceMicros > maxPriceMicros) {
+            return new ArrayList<IabSkuDetails>();
+        }
+        int to = maxPriceMicros == Long.MAX_VALUE ? index.size() : index.lowerBound(maxPriceMicros + 1);
+        return toSkuDetails(index, index.lowerBound(minPriceMicros), to);
+    }
+
+    private static PriceIndex lookup(PriceIndex[] indexes, String[] table, String key) {
+        for (int i = 0; i < table.length; i++) {
+            if (key == null ? table[i] == null : key.equals(table[i])) {
+                return indexes[i];
+            }
+        }
+        return null;
+    }
+
+    private List<IabSkuDetails> toSkuDetails(PriceIndex index, int from, int to) {
+        return new SkuDetailsList(index.mIndexes, from, Math.max(to, from));
+    }
+
+    /**
+     * Decodes Google Play's JSON of the SKU at the given index, as it was fetched.
+     */
+    public String getJsonAt(int index) {
+        int start = mJsonOffsets[index];
+        return new String(mJsons, start, mJsonOffsets[index + 1] - start, UTF_8);
+    }
+
+    /**
+     * Reads the description of the SKU at the given index out of its JSON.
+     */
+    public String getDescriptionAt(int index) {
+        String json = getJsonAt(index);
+        String[] description = new String[DESCRIPTION_FIELD.length];
+        try {
+            new BillingPayloadParser().parse(json, DESCRIPTION_FIELD, description, null);
+        } catch (IllegalArgumentException e) {
+            try {
+                return new JSONObject(json).optString("description");
+            } catch (JSONException jsonException) {
+                SoomlaUtils.LogError(TAG, "Couldn't read the description of " + mSkus[index] + ": "
+                        + jsonException.getMessage());
+            }
+        }
+        return description[0] != null ? description[0] : "";
+    }
+
+
+    /** Setters and Getters **/
+
+    public int size() {
+        return mSkus.length;
+    }
+
+    public String getSkuAt(int index) {
+        return mSkus[index];
+    }
+
+    public String getItemTypeAt(int index) {
+        return mItemTypeTable[mItemTypes[index]];
+    }
+
+    public long getPriceMicrosAt(int index) {
+        return mPriceMicros[index];
+    }
+
+    public String getCurrencyCodeAt(int index) {
+        return mCurrencyTable[mCurrencies[index]];
+    }
+
+    public String getPriceAt(int index) {
+        return mPrices[index];
+    }
+
+    public String getTitleAt(int index) {
+        return mTitles[index];
+    }
+
+    public List<String> getAllSkus() {
+        return Collections.unmodifiableList(Arrays.asList(mSkus));
+    }
+
+
+    /**
+     * Read-only list of SKU details, holding only SKU indexes.
+     */
+    private class SkuDetailsList extends AbstractList<IabSkuDetails> implements RandomAccess {
+
+        /**
+         * @param indexes the SKU indexes to list, or null for all the SKUs in SKU order.
+         * @param from the first position in <code>indexes</code>, inclusive.
+         * @param to the last position in <code>indexes</code>, exclusive.
+         */
+        SkuDetailsList(int[] indexes, int from, int to) {
+            mListIndexes = indexes;
+            mFrom = from;
+            mSize = to - from;
+        }
+
+        @Override
+        public IabSkuDetails get(int position) {
+            if (position < 0 || position >= mSize) {
+                throw new IndexOutOfBoundsException("Position: " + position + ", size: " + mSize);
+            }
+            int index = mListIndexes != null ? mListIndexes[mFrom + position] : mFrom + position;
+            return new SkuDetailsView(index);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        private final int[] mListIndexes;
+        private final int mFrom;
+        private final int mSize;
+    }
+
+    /**
+     * <code>IabSkuDetails</code> of the SKU at an index of the catalog. The fields and the JSON
+     * are read from the catalog.
+     */
+    private class SkuDetailsView extends IabSkuDetails {
+
+        SkuDetailsView(int index) {
+            super(null, null, null, null, null, 0, null);
+            mIndex = index;
+        }
+
+        @Override
+        public String getItemType() {
+            return getItemTypeAt(mIndex);
+        }
+
+        @Override
+        public String getSku() {
+            return mSkus[mIndex];
+        }
+
+        @Override
+        public String getType() {
+            return getItemTypeAt(mIndex);
+        }
+
+        @Override
+        public String getPrice() {
+            return mPrices[mIndex];
+        }
+
+        @Override
+        public String getTitle() {
+            return mTitles[mIndex];
+        }
+
+        @Override
+        public String getDescription() {
+            return getDescriptionAt(mIndex);
+        }
+
+        @Override
+        public long getPriceMicros() {
+            return mPriceMicros[mIndex];
+        }
+
+        @Override
+        public String getCurrencyCode() {
+            return getCurrencyCodeAt(mIndex);
+        }
+
+        @Override
+        public String getJson() {
+            return getJsonAt(mIndex);
+        }
+
+        @Override
+        public String toString() {
+            return "IabSkuDetails:" + getJson();
+        }
+
+        private final int mIndex;
+    }
+
+    /**
+     * SKU indexes sorted by price, with their prices alongside for binary search.
+     */
+    private class PriceIndex {
+
+        PriceIndex(int[] indexes) {
+            mIndexes = indexes;
+            mPrices = new long[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                mPrices[i] = mPriceMicros[indexes[i]];
+            }
+        }
+
+        int size() {
+            return mIndexes.length;
+        }
+
+        /**
+         * Returns the position of the first price that's not lower than the given one.
+         */
+        int lowerBound(long priceMicros) {
+            int low = 0;
+            int high = mPrices.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPrices[mid] < priceMicros) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the sub-index of the SKUs whose key (item type or currency) is the given one.
+         */
+        PriceIndex filter(short[] keys, int key) {
+            int count = 0;
+            for (int index : mIndexes) {
+                if (keys[index] == key) {
+                    count++;
+                }
+            }
+            int[] filtered = new int[count];
+            int i = 0;
+            for (int index : mIndexes) {
+                if (keys[index] == key) {
+                    filtered[i++] = index;
+                }
+            }
+            return new PriceIndex(filtered);
+        }
+
+        private final int[] mIndexes;
+        private final long[] mPrices;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA CompactSkuCatalog";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] DESCRIPTION_FIELD = { "description" };
+
+    private final String[] mSkus;
+    private final short[] mItemTypes;
+    private final String[] mItemTypeTable;
+    private final short[] mCurrencies;
+    private final String[] mCurrencyTable;
+    private final long[] mPriceMicros;
+    private final String[] mPrices;
+    private final String[] mTitles;
+    private final byte[] mJsons;
+    private final int[] mJsonOffsets;
+
+    private final PriceIndex mPriceIndex;
+    private final PriceIndex[] mItemTypePriceIndexes;
+    private final PriceIndex[] mCurrencyPriceIndexes;
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable journal of consumptions that were started but not confirmed by Google Play.
+ * Entries are keyed by purchase token and survive app restarts, so a consumption that was
+ * interrupted (by a crash or a transient error) can be replayed on the next setup.
+ *
+ * The journal is loaded from storage once, on the first call, so it should first be used off
+ * the main thread. A new entry is written before {@link #begin} returns, so it's in storage
+ * before the consumption reaches Google Play. Removals of confirmed consumptions are written
+ * back in batches, a short while after they're made.
+ */
+public class ConsumeJournal {
+
+    /**
+     * Marks a consumption that's about to start, and records it in the journal. A new entry is
+     * written to storage before this returns. Must not be called on the main thread.
+     *
+     * @param purchase the purchase that's about to be consumed.
+     * @return false if a consumption of the same purchase is already in progress.
+     */
+    public boolean begin(IabPurchase purchase) {
+        String token = purchase.getToken();
+        if (TextUtils.isEmpty(token)) {
+            return true;
+        }
+
+        boolean added;
+        Integer consuming;
+        synchronized (this) {
+            consuming = mConsuming.get(token);
+            mConsuming.put(token, consuming == null ? 1 : consuming + 1);
+            added = add(token, purchase);
+        }
+        if (added) {
+            save();
+        }
+        return consuming == null;
+    }
+
+    /**
+     * Records a purchase that has to be consumed, without starting its consumption. It's
+     * consumed by a later consumption, or when the journal is replayed. The entry is written to
+     * storage before this returns. Must not be called on the main thread.
+     *
+     * @param purchase the purchase to consume.
+     */
+    public void record(IabPurchase purchase) {
+        String token = purchase.getToken();
+        if (TextUtils.isEmpty(token)) {
+            return;
+        }
+
+        boolean added;
+        synchronized (this) {
+            added = add(token, purchase);
+        }
+        if (added) {
+            save();
+        }
+    }
+
+    /**
+     * Adds an entry for the given purchase, if there's none yet.
+     *
+     * @return true if an entry was added.
+     */
+    private boolean add(String token, IabPurchase purchase) {
+        if (getEntries().containsKey(token)) {
+            return false;
+        }
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(ITEM_TYPE, purchase.getItemType());
+            entry.put(SKU, purchase.getSku());
+            entry.put(ORDER_ID, purchase.getOrderId());
+            mEntries.put(token, entry);
+            mVersion++;
+            return true;
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't record consumption of " + purchase.getSku() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Marks a consumption started with {@link #begin} as finished.
+     *
+     * @param purchase the consumed purchase.
+     * @param done true to remove it from the journal, after Google Play confirmed it (or after
+     *             it failed for good), false to keep it for the next replay.
+     */
+    public synchronized void end(IabPurchase purchase, boolean done) {
+        String token = purchase.getToken();
+        if (TextUtils.isEmpty(token)) {
+            return;
+        }
+
+        Integer consuming = mConsuming.get(token);
+        if (consuming != null && consuming > 1) {
+            mConsuming.put(token, consuming - 1);
+        } else {
+            mConsuming.remove(token);
+        }
+        if (done && getEntries().remove(token) != null) {
+            mVersion++;
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Returns the consumptions that weren't confirmed yet and aren't in progress, oldest first.
+     */
+    public synchronized List<IabPurchase> getPending() {
+        List<IabPurchase> purchases = new ArrayList<IabPurchase>();
+        for (Map.Entry<String, JSONObject> entry : getEntries().entrySet()) {
+            if (mConsuming.containsKey(entry.getKey())) {
+                continue;
+            }
+            JSONObject value = entry.getValue();
+            purchases.add(new IabPurchase(value.optString(ITEM_TYPE, IabHelper.ITEM_TYPE_INAPP),
+                    value.optString(SKU, ""), entry.getKey(), value.optString(ORDER_ID, ""), 0));
+        }
+        return purchases;
+    }
+
+    private Map<String, JSONObject> getEntries() {
+        if (mEntries == null) {
+            mEntries = new LinkedHashMap<String, JSONObject>();
+            String value = KeyValueStorage.getValue(JOURNAL_KEY);
+            if (!TextUtils.isEmpty(value)) {
+                try {
+                    JSONObject jsonObject = new JSONObject(value);
+                    Iterator<String> keys = jsonObject.keys();
+                    while (keys.hasNext()) {
+                        String token = keys.next();
+                        mEntries.put(token, jsonObject.getJSONObject(token));
+                    }
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't load the consume journal: " + e.getMessage());
+                }
+            }
+        }
+        return mEntries;
+    }
+
+    private void scheduleSave() {
+        if (mSaveScheduled) {
+            return;
+        }
+        mSaveScheduled = true;
+        mWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ConsumeJournal.this) {
+                    mSaveScheduled = false;
+                }
+                save();
+            }
+        }, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the journal as it is now, on the calling thread. The journal's lock isn't held
+     * during the storage write. Writes are serialized, and a write of an older version of the
+     * journal is skipped, so writes never overtake each other.
+     */
+    private void save() {
+        String value;
+        long version;
+        synchronized (this) {
+            version = mVersion;
+            value = null;
+            if (!mEntries.isEmpty()) {
+                try {
+                    JSONObject jsonObject = new JSONObject();
+                    for (Map.Entry<String, JSONObject> entry : mEntries.entrySet()) {
+                        jsonObject.put(entry.getKey(), entry.getValue());
+                    }
+                    value = jsonObject.toString();
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't save the consume journal: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        synchronized (mWriteLock) {
+            if (version <= mSavedVersion) {
+                // a newer version was written already
+                return;
+            }
+            if (value == null) {
+                KeyValueStorage.deleteKeyValue(JOURNAL_KEY);
+            } else {
+                KeyValueStorage.setValue(JOURNAL_KEY, value);
+            }
+            mSavedVersion = version;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA ConsumeJournal";
+
+    private static final String JOURNAL_KEY = "soomla.billing.google.consumeJournal";
+    private static final String ITEM_TYPE = "itemType";
+    private static final String SKU = "sku";
+    private static final String ORDER_ID = "orderId";
+
+    // how long removals wait to be written together
+    private static final long SAVE_DELAY_MILLIS = 500;
+
+    private Map<String, JSONObject> mEntries;
+    private final Map<String, Integer> mConsuming = new HashMap<String, Integer>();
+    private boolean mSaveScheduled;
+
+    // bumped on every change, so a write can tell whether a newer one already happened
+    private long mVersion;
+    private final Object mWriteLock = new Object();
+    private long mSavedVersion;
+    private final ScheduledThreadPoolExecutor mWriter = new ScheduledThreadPoolExecutor(1);
+    {
+        mWriter.setKeepAliveTime(30, TimeUnit.SECONDS);
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+}
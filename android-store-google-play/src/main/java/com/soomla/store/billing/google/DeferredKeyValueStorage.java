@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind front for {@link KeyValueStorage}, for settings that are written on the startup path.
+ *
+ * Writes are kept in memory and flushed on a background thread. Writes to the same key before the
+ * flush are coalesced into the last one, and deletes of keys that this class already read as
+ * missing, or deleted itself, are skipped. Reads through this class see the pending writes.
+ *
+ * A write that's still pending when the process is killed is lost. Pending writes are flushed
+ * right away when the app's UI is hidden (API 14+), and {@link #flush()} can be called by
+ * anyone that needs them persisted at a given point.
+ */
+public class DeferredKeyValueStorage {
+
+    /**
+     * The storage the writes end up in. Only replaced by tests.
+     */
+    interface Backend {
+        String getValue(String key);
+
+        void setValue(String key, String val);
+
+        void deleteKeyValue(String key);
+    }
+
+    /**
+     * Sets the value of the given key. The value is persisted asynchronously.
+     *
+     * @param key the key to set.
+     * @param val the value to set.
+     */
+    public static void setValue(String key, String val) {
+        put(key, val);
+    }
+
+    /**
+     * Deletes the given key. The deletion is persisted asynchronously.
+     *
+     * @param key the key to delete.
+     */
+    public static void deleteKeyValue(String key) {
+        synchronized (sLock) {
+            if (sAbsentKeys.contains(key) && !sPendingWrites.containsKey(key)) {
+                return;
+            }
+        }
+        put(key, null);
+    }
+
+    /**
+     * Retrieves the value of the given key, taking pending writes into account.
+     *
+     * @param key the key to look up.
+     * @return the value of the key, or null if it isn't set.
+     */
+    public static String getValue(String key) {
+        synchronized (sLock) {
+            if (sPendingWrites.containsKey(key)) {
+                return sPendingWrites.get(key);
+            }
+            if (sAbsentKeys.contains(key)) {
+                return null;
+            }
+        }
+
+        String val = sBackend.getValue(key);
+        if (val == null) {
+            synchronized (sLock) {
+                if (!sPendingWrites.containsKey(key)) {
+                    sAbsentKeys.add(key);
+                }
+            }
+        }
+        return val;
+    }
+
+    /**
+     * Persists the pending writes on the calling thread, and returns when they're done.
+     */
+    public static void flush() {
+        synchronized (sFlushLock) {
+            Map<String, String> writes;
+            synchronized (sLock) {
+                if (sPendingWrites.isEmpty()) {
+                    return;
+                }
+                writes = new LinkedHashMap<String, String>(sPendingWrites);
+            }
+
+            SoomlaUtils.LogDebug(TAG, "Flushing " + writes.size() + " deferred writes.");
+            for (Map.Entry<String, String> write : writes.entrySet()) {
+                String key = write.getKey();
+                String val = write.getValue();
+                if (val != null) {
+                    sBackend.setValue(key, val);
+                } else {
+                    sBackend.deleteKeyValue(key);
+                }
+
+                synchronized (sLock) {
+                    // a newer write to the same key stays pending for the next flush
+                    if (sPendingWrites.containsKey(key) && sPendingWrites.get(key) == val) {
+                        sPendingWrites.remove(key);
+                        if (val == null) {
+                            sAbsentKeys.add(key);
+                        } else {
+                            sAbsentKeys.remove(key);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void put(String key, String val) {
+        synchronized (sLock) {
+            sPendingWrites.put(key, val);
+            if (!sFlushScheduled) {
+                sFlushScheduled = true;
+                registerLifecycleFlush();
+                EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (sLock) {
+                            sFlushScheduled = false;
+                        }
+                        flush();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Flushes the pending writes when the app goes to the background, where it may be killed
+     * before the background flush runs.
+     */
+    private static void registerLifecycleFlush() {
+        Context context = SoomlaApp.getAppContext();
+        if (sLifecycleRegistered || context == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        sLifecycleRegistered = true;
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                    flush();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                flush();
+            }
+        });
+    }
+
+    static void setBackend(Backend backend) {
+        sBackend = backend;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA DeferredKeyValueStorage";
+
+    private static final Object sLock = new Object();
+    // held while writing to the backend, so an older snapshot can't land after a newer one
+    private static final Object sFlushLock = new Object();
+
+    // Flushes the writes. Its thread is a daemon, and goes away when it's idle
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SoomlaDeferredKeyValueStorage");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static Backend sBackend = new Backend() {
+        @Override
+        public String getValue(String key) {
+            return KeyValueStorage.getValue(key);
+        }
+
+        @Override
+        public void setValue(String key, String val) {
+            KeyValueStorage.setValue(key, val);
+        }
+
+        @Override
+        public void deleteKeyValue(String key) {
+            KeyValueStorage.deleteKeyValue(key);
+        }
+    };
+
+    // null values are pending deletes
+    private static final Map<String, String> sPendingWrites = new LinkedHashMap<String, String>();
+    private static final Set<String> sAbsentKeys = new HashSet<String>();
+    private static boolean sFlushScheduled = false;
+    private static boolean sLifecycleRegistered = false;
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.events.SoomlaEvent;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.events.UnexpectedStoreErrorEvent;
+
+/**
+ * This event is fired when a purchase that was granted before its server verification (because
+ * the verification server was unreachable, or because purchases are granted before the server
+ * verifies them) finally got its verdict from the server.
+ *
+ * Real Game Example:
+ *  Example Inventory: { currency_coin: 100, robot_character: 1 }
+ *  A user bought a robot character while offline and it was granted according to
+ *  <code>verifyOnServerFailure</code>. Once back online, the server says the purchase is fake -
+ *  the game takes the robot character back.
+ */
+public class DeferredVerificationFinishedEvent extends SoomlaEvent {
+
+    /**
+     * Constructor
+     *
+     * @param purchase the purchase that was verified
+     */
+    public DeferredVerificationFinishedEvent(IabPurchase purchase) {
+        this(purchase, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param purchase the purchase that was verified
+     * @param sender the sender of the event
+     */
+    public DeferredVerificationFinishedEvent(IabPurchase purchase, Object sender) {
+        super(sender);
+        Purchase = purchase;
+        Verified = purchase.isServerVerified();
+        ErrorCode = purchase.getVerificationErrorCode();
+    }
+
+
+    /** Public Members **/
+
+    public final IabPurchase Purchase;
+
+    public final boolean Verified;
+
+    public final UnexpectedStoreErrorEvent.ErrorCode ErrorCode;
+}
@@ -17,18 +17,16 @@
 package com.soomla.store.billing.google;
 
 import android.app.Activity;
+import android.app.Fragment;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.content.pm.ResolveInfo;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import com.android.vending.billing.IInAppBillingService;
 import com.soomla.SoomlaApp;
@@ -43,9 +41,18 @@ import com.soomla.store.billing.IabSkuDetails;
 import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -61,6 +68,22 @@ public class GoogleIabHelper extends IabHelper {
 
     public static final int SKU_QUERY_MAX_CHUNK_SIZE = 19;
 
+    // Billing response codes that IabResult doesn't define
+    public static final int BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE = 2;
+
+    // IAB Helper error codes that IabResult doesn't define
+    public static final int IABHELPER_CALL_TIMEOUT = -1011;
+    public static final int IABHELPER_CANCELED = -1012;
+
+    // how long a single billing service call may take before it's considered hung
+    public static final long DEFAULT_BILLING_CALL_TIMEOUT_MILLIS = 20000;
+
+    // max consumePurchase calls running at the same time, across all consumptions
+    public static final int MAX_CONCURRENT_CONSUMES = 4;
+
+    // max time a SKU details chunk or purchases page waits for buy intents and consumptions
+    public static final long MAX_BACKGROUND_YIELD_MILLIS = 5000;
+
     // Keys for the responses from InAppBillingService
     public static final String RESPONSE_CODE = "RESPONSE_CODE";
     public static final String RESPONSE_GET_SKU_DETAILS_LIST = "DETAILS_LIST";
@@ -89,24 +112,21 @@ public class GoogleIabHelper extends IabHelper {
      * See parent
      */
     protected void startSetupInner() {
-        mServiceConn = new ServiceConnection() {
+        mConnection = new BillingServiceConnection(new BillingServiceConnection.Listener() {
 
-            public void onServiceDisconnected(ComponentName name) {
-                SoomlaUtils.LogDebug(TAG, "Billing service disconnected.");
-                mService = null;
-            }
+            public void onServiceConnected(IInAppBillingService service, boolean reconnected) {
+                if (reconnected) {
+                    // operations parked while the service was away carry on by themselves
+                    return;
+                }
 
-            public void onServiceConnected(ComponentName name, IBinder service) {
-                SoomlaUtils.LogDebug(TAG, "Billing service connected.");
-                GoogleIabHelper.this.service = service;
-                mService = IInAppBillingService.Stub.asInterface(service);
                 String packageName = SoomlaApp.getAppContext().getPackageName();
                 try {
                     SoomlaUtils.LogDebug(TAG, "Checking for in-app billing 3 support.");
 
                     // check for in-app billing v3 support
-                    int inAppResponse = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
-                    int subsResponse = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
+                    int inAppResponse = isBillingSupported(service, packageName, ITEM_TYPE_INAPP);
+                    int subsResponse = isBillingSupported(service, packageName, ITEM_TYPE_SUBS);
                     if (inAppResponse != IabResult.BILLING_RESPONSE_RESULT_OK
                             || subsResponse != IabResult.BILLING_RESPONSE_RESULT_OK) {
                         setupFailed(new IabResult(inAppResponse != 0 ? inAppResponse : subsResponse, "Error checking for billing v3 support."));
@@ -115,22 +135,19 @@ public class GoogleIabHelper extends IabHelper {
                     SoomlaUtils.LogDebug(TAG, "In-app billing version 3 supported for " + packageName);
 
                     setupSuccess();
+                    replayConsumeJournal();
                 }
                 catch (RemoteException e) {
                     setupFailed(new IabResult(IabResult.IABHELPER_REMOTE_EXCEPTION, "RemoteException while setting up in-app billing."));
                     e.printStackTrace();
                 }
+                catch (IabException e) {
+                    setupFailed(e.getResult());
+                }
             }
-        };
+        });
 
-        Intent serviceIntent = new Intent("com.android.vending.billing.InAppBillingService.BIND");
-        serviceIntent.setPackage("com.android.vending");
-        List<ResolveInfo> intentServices = SoomlaApp.getAppContext().getPackageManager().queryIntentServices(serviceIntent, 0);
-        if (intentServices != null && !intentServices.isEmpty()) {
-            // service available to handle that Intent
-            SoomlaApp.getAppContext().bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
-        }
-        else {
+        if (!mConnection.bind()) {
             // no service available to handle that Intent
             setupFailed(new IabResult(IabResult.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE, "Billing service unavailable on device."));
         }
@@ -145,14 +162,280 @@ public class GoogleIabHelper extends IabHelper {
     public void dispose() {
         SoomlaUtils.LogDebug(TAG, "Disposing.");
         super.dispose();
-        if (mServiceConn != null) {
+        if (mConnection != null) {
             SoomlaUtils.LogDebug(TAG, "Unbinding from service.");
-            if (SoomlaApp.getAppContext() != null && mService != null) SoomlaApp.getAppContext().unbindService(mServiceConn);
-            mServiceConn = null;
-            mService = null;
+            mConnection.unbind();
+            mConnection = null;
+        }
+        mCallExecutor.shutdown();
+    }
+
+    /**
+     * Sets how long a single billing service call may take. Calls that take longer fail with
+     * {@link #IABHELPER_CALL_TIMEOUT}.
+     *
+     * @param timeoutMillis the timeout of every billing service call.
+     */
+    public void setBillingCallTimeout(long timeoutMillis) {
+        mCallExecutor.setTimeout(timeoutMillis);
+    }
+
+    /**
+     * Sets the retry policy of the background billing service calls (purchases pages, SKU
+     * details chunks and consumptions). Calls made on the main thread are never retried.
+     *
+     * @param retryPolicy the retry policy, or null to never retry.
+     */
+    public void setRetryPolicy(BillingRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy != null ? retryPolicy : BillingRetryPolicy.NONE;
+    }
+
+    /**
+     * Sets the cache that prefetched buy intents are kept in. The cache may outlive the helper,
+     * so intents prefetched before a purchase aren't lost when the helper is recreated.
+     *
+     * @param buyIntentCache the cache.
+     */
+    public void setBuyIntentCache(BuyIntentCache buyIntentCache) {
+        if (buyIntentCache != null) {
+            mBuyIntentCache = buyIntentCache;
         }
     }
 
+    /**
+     * Fetches the buy intent of a likely purchase ahead of time, e.g. when the user opens an
+     * item's page, so the purchase flow doesn't have to wait for <code>getBuyIntent</code>.
+     * The buy intent is used only by a purchase of the same item type, SKU and developer
+     * payload, within the cache's TTL. Otherwise the purchase flow gets a new one.
+     *
+     * Prefetches run one at a time on a background thread shared by all helpers, so a screen
+     * that prefetches many items doesn't start a thread for each of them.
+     *
+     * Async method - safe to run on ui thread. Does nothing if setup isn't done.
+     *
+     * @param itemType the item type of the purchase.
+     * @param sku the SKU of the purchase.
+     * @param extraData the developer payload the purchase will be launched with.
+     * @param onFinished run on the background thread once the prefetch is done, whatever its
+     *     outcome, also when there's nothing to prefetch. May be null.
+     */
+    public void prefetchBuyIntent(final String itemType, final String sku, final String extraData,
+                                  final Runnable onFinished) {
+        if (!isSetupDone()) {
+            BillingLog.debug(TAG, "Not prefetching buy intent for {}, setup isn't done.", sku);
+            runInBackground(onFinished);
+            return;
+        }
+        final BuyIntentCache buyIntentCache = mBuyIntentCache;
+        if (buyIntentCache.contains(itemType, sku, extraData)) {
+            runInBackground(onFinished);
+            return;
+        }
+
+        // keeps the helper from being disposed by an idle check while the prefetch runs
+        mOperations.startBackground(IabOperationTracker.Kind.PURCHASE);
+        PREFETCH_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // the helper may be disposed by now, or an earlier prefetch in the queue fetched it
+                    if (!isSetupDone() || buyIntentCache.contains(itemType, sku, extraData)) {
+                        return;
+                    }
+                    mCallGate.yieldToUrgent();
+                    Bundle buyIntentBundle = getBuyIntent(itemType, sku, extraData, true);
+                    int response = getResponseCodeFromBundle(buyIntentBundle);
+                    if (response != IabResult.BILLING_RESPONSE_RESULT_OK) {
+                        if (BillingLog.isDebugEnabled()) {
+                            BillingLog.debug(TAG, "Couldn't prefetch buy intent for {}: {}", sku, IabResult.getResponseDesc(response));
+                        }
+                        return;
+                    }
+                    PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
+                    if (pendingIntent != null) {
+                        buyIntentCache.put(itemType, sku, extraData, pendingIntent);
+                        BillingLog.debug(TAG, "Prefetched buy intent for {}", sku);
+                    }
+                } catch (RemoteException e) {
+                    BillingLog.debug(TAG, "Couldn't prefetch buy intent for {}: {}", sku, e.getMessage());
+                } catch (IabException e) {
+                    BillingLog.debug(TAG, "Couldn't prefetch buy intent for {}: {}", sku, e.getResult().getMessage());
+                } finally {
+                    mOperations.endBackground(IabOperationTracker.Kind.PURCHASE);
+                    if (onFinished != null) {
+                        onFinished.run();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the given runnable, if any, on the prefetch thread. Never inline, since the caller
+     * may still be holding the service's lease.
+     */
+    private static void runInBackground(Runnable runnable) {
+        if (runnable != null) {
+            PREFETCH_EXECUTOR.execute(runnable);
+        }
+    }
+
+    /**
+     * Same as {@link #launchPurchaseFlow(Activity, String, String, OnIabPurchaseFinishedListener, String)},
+     * but starts the buy intent from the given fragment, which then gets the activity result.
+     * Needs API 24 (<code>Fragment.startIntentSenderForResult</code>). Must be called on the
+     * main thread.
+     *
+     * @param fragment an added fragment.
+     */
+    public void launchPurchaseFlow(Fragment fragment, String itemType, String sku,
+                                   OnIabPurchaseFinishedListener listener, String extraData) {
+        launchPurchaseFlow(fragment, itemType, sku, listener, extraData, null);
+    }
+
+    /**
+     * Same as {@link #launchPurchaseFlow(Fragment, String, String, OnIabPurchaseFinishedListener, String)},
+     * and notifies <code>launchedListener</code> if the buy intent is started.
+     *
+     * @param launchedListener notified when the buy intent is started, may be null.
+     */
+    public void launchPurchaseFlow(Fragment fragment, String itemType, String sku,
+                                   OnIabPurchaseFinishedListener listener, String extraData,
+                                   OnBuyIntentLaunchedListener launchedListener) {
+        mLaunchFragment = fragment;
+        try {
+            launchPurchaseFlow(fragment.getActivity(), itemType, sku, listener, extraData, launchedListener);
+        } finally {
+            mLaunchFragment = null;
+        }
+    }
+
+    /**
+     * Same as {@link #launchPurchaseFlow(Activity, String, String, OnIabPurchaseFinishedListener, String)},
+     * and notifies <code>launchedListener</code> if the buy intent is started. Must be called on
+     * the main thread.
+     *
+     * @param launchedListener notified when the buy intent is started, may be null.
+     */
+    public void launchPurchaseFlow(Activity act, String itemType, String sku,
+                                   OnIabPurchaseFinishedListener listener, String extraData,
+                                   OnBuyIntentLaunchedListener launchedListener) {
+        mBuyIntentLaunchedListener = launchedListener;
+        try {
+            launchPurchaseFlow(act, itemType, sku, listener, extraData);
+        } finally {
+            mBuyIntentLaunchedListener = null;
+        }
+    }
+
+    /**
+     * Calls <code>getBuyIntent</code>.
+     *
+     * @param background true for prefetches, which wait for a reconnecting service and don't
+     *                   hold back background queries.
+     */
+    private Bundle getBuyIntent(final String itemType, final String sku, final String extraData, boolean background)
+            throws RemoteException, IabException {
+        BillingCallExecutor.BillingCall<Bundle> call = new BillingCallExecutor.BillingCall<Bundle>() {
+            @Override
+            public Bundle call(IInAppBillingService service) throws RemoteException {
+                return service.getBuyIntent(3, SoomlaApp.getAppContext().getPackageName(), sku, itemType, extraData);
+            }
+        };
+        if (background) {
+            return mCallExecutor.execute("getBuyIntent", getService(true), call, null);
+        }
+
+        mCallGate.enterUrgent();
+        try {
+            return mCallExecutor.execute("getBuyIntent", getService(false), call, null);
+        } finally {
+            mCallGate.exitUrgent();
+        }
+    }
+
+    /**
+     * Runs a billing service call, retrying it according to the retry policy when it fails
+     * with a retryable response code or a <code>RemoteException</code>.
+     * Only the failed call is retried, so paginated and chunked queries go on from where they were.
+     * If the service is reconnecting, waits (off the main thread) for the new connection.
+     */
+    private <T> T executeWithRetry(String name, BillingCallExecutor.BillingCall<T> call, IabCancellationSignal signal)
+            throws RemoteException, IabException {
+        BillingRetryPolicy retryPolicy = mRetryPolicy;
+        boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        if (onMainThread) {
+            // don't sleep on the main thread
+            retryPolicy = BillingRetryPolicy.NONE;
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            int response;
+            try {
+                T result = mCallExecutor.execute(name, getService(!onMainThread), call, signal);
+                response = getResponseCode(result);
+                if (response == IabResult.BILLING_RESPONSE_RESULT_OK || !retryPolicy.shouldRetry(response, attempt)) {
+                    return result;
+                }
+            } catch (RemoteException e) {
+                response = IabResult.IABHELPER_REMOTE_EXCEPTION;
+                if (!retryPolicy.shouldRetry(response, attempt)) {
+                    throw e;
+                }
+            } catch (IabException e) {
+                response = e.getResult().getResponse();
+                if (response == IABHELPER_CANCELED || !retryPolicy.shouldRetry(response, attempt)) {
+                    throw e;
+                }
+            }
+
+            long delay = retryPolicy.getDelay(attempt);
+            if (BillingLog.isDebugEnabled()) {
+                BillingLog.debug(TAG, "{} failed ({}), retrying in {}ms.", name, IabResult.getResponseDesc(response), delay);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IabException(IABHELPER_CANCELED, name + " was interrupted.");
+            }
+        }
+    }
+
+    private int getResponseCode(Object callResult) {
+        if (callResult instanceof Bundle) {
+            return getResponseCodeFromBundle((Bundle) callResult);
+        }
+        if (callResult instanceof Integer) {
+            return (Integer) callResult;
+        }
+        return IabResult.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    /**
+     * Returns the billing service.
+     *
+     * @param wait whether to wait for the service if it's reconnecting.
+     * @return the billing service, or null if it's not connected.
+     */
+    private IInAppBillingService getService(boolean wait) {
+        BillingServiceConnection connection = mConnection;
+        if (connection == null) {
+            return null;
+        }
+        return wait ? connection.awaitService(mCallExecutor.getTimeout()) : connection.getService();
+    }
+
+    private int isBillingSupported(IInAppBillingService service, final String packageName, final String itemType)
+            throws RemoteException, IabException {
+        return mCallExecutor.execute("isBillingSupported", service, new BillingCallExecutor.BillingCall<Integer>() {
+            @Override
+            public Integer call(IInAppBillingService service) throws RemoteException {
+                return service.isBillingSupported(3, packageName, itemType);
+            }
+        }, null);
+    }
+
     /**
      * Handles an activity result that's part of the purchase flow in in-app billing. If you
      * are calling {@link #launchPurchaseFlow}, then you must call this method from your
@@ -201,15 +484,20 @@ public class GoogleIabHelper extends IabHelper {
         String dataSignature = data.getStringExtra(RESPONSE_INAPP_SIGNATURE);
 
         if (resultCode == Activity.RESULT_OK && responseCode == IabResult.BILLING_RESPONSE_RESULT_OK) {
-            SoomlaUtils.LogDebug(TAG, "Successful resultcode from purchase activity.");
-            SoomlaUtils.LogDebug(TAG, "IabPurchase data: " + purchaseData);
-            SoomlaUtils.LogDebug(TAG, "Data signature: " + dataSignature);
-            SoomlaUtils.LogDebug(TAG, "Extras: " + data.getExtras());
-            SoomlaUtils.LogDebug(TAG, "Expected item type: " + mPurchasingItemType);
+            BillingLog.debug(TAG, "Successful resultcode from purchase activity.");
+            BillingLog.debug(TAG, "IabPurchase data: {}", purchaseData);
+            BillingLog.debug(TAG, "Data signature: {}", dataSignature);
+            if (BillingLog.isDebugEnabled()) {
+                // getExtras() copies the bundle
+                BillingLog.debug(TAG, "Extras: {}", data.getExtras());
+            }
+            BillingLog.debug(TAG, "Expected item type: {}", mPurchasingItemType);
 
             if (purchaseData == null || dataSignature == null) {
                 SoomlaUtils.LogError(TAG, "BUG: either purchaseData or dataSignature is null.");
-                SoomlaUtils.LogDebug(TAG, "Extras: " + data.getExtras().toString());
+                if (BillingLog.isDebugEnabled()) {
+                    BillingLog.debug(TAG, "Extras: {}", data.getExtras());
+                }
                 result = new IabResult(IabResult.IABHELPER_UNKNOWN_ERROR, "IAB returned null purchaseData or dataSignature");
                 purchaseFailed(result, null);
                 return true;
@@ -231,7 +519,7 @@ public class GoogleIabHelper extends IabHelper {
                     purchaseFailed(result, purchase);
                     return true;
                 }
-                SoomlaUtils.LogDebug(TAG, "IabPurchase signature successfully verified.");
+                BillingLog.debug(TAG, "IabPurchase signature successfully verified.");
             }
             catch (JSONException e) {
                 SoomlaUtils.LogError(TAG, "Failed to parse purchase data.");
@@ -267,38 +555,134 @@ public class GoogleIabHelper extends IabHelper {
      * @throws IabException if there is a problem during consumption.
      */
      public void consume(IabPurchase itemInfo) throws IabException {
-         checkSetupDoneAndThrow("consume");
+         consume(itemInfo, null);
+     }
+
+    private void consume(IabPurchase itemInfo, IabCancellationSignal signal) throws IabException {
+        consume(itemInfo, signal, false);
+    }
+
+    /**
+     * @param replay true when replaying the journal: a purchase that's being consumed right now
+     *               is skipped instead of being consumed a second time.
+     * @return false if the consumption was skipped.
+     */
+    private boolean consume(IabPurchase itemInfo, IabCancellationSignal signal, boolean replay) throws IabException {
+        checkSetupDoneAndThrow("consume");
 
         if (!itemInfo.getItemType().equals(ITEM_TYPE_INAPP)) {
             throw new IabException(IabResult.IABHELPER_INVALID_CONSUMPTION,
                     "Items of type '" + itemInfo.getItemType() + "' can't be consumed.");
         }
 
+        String token = itemInfo.getToken();
+        String sku = itemInfo.getSku();
+        if (token == null || token.equals("")) {
+           SoomlaUtils.LogError(TAG, "Can't consume "+ sku + ". No token.");
+           throw new IabException(IabResult.IABHELPER_MISSING_TOKEN, "PurchaseInfo is missing token for sku: "
+               + sku + " " + itemInfo);
+        }
+
+        if (!CONSUME_JOURNAL.begin(itemInfo) && replay) {
+            CONSUME_JOURNAL.end(itemInfo, false);
+            return false;
+        }
+        // whether the journal entry can go: confirmed, or failed for good
+        boolean done = false;
         try {
-            String token = itemInfo.getToken();
-            String sku = itemInfo.getSku();
-            if (token == null || token.equals("")) {
-               SoomlaUtils.LogError(TAG, "Can't consume "+ sku + ". No token.");
-               throw new IabException(IabResult.IABHELPER_MISSING_TOKEN, "PurchaseInfo is missing token for sku: "
-                   + sku + " " + itemInfo);
+            BillingLog.debug(TAG, "Consuming sku: {}, token: {}", sku, token);
+            int response;
+            final AtomicInteger attempts = new AtomicInteger();
+            mCallGate.enterUrgent();
+            try {
+                final String consumeToken = token;
+                response = executeWithRetry("consumePurchase", new BillingCallExecutor.BillingCall<Integer>() {
+                    @Override
+                    public Integer call(IInAppBillingService service) throws RemoteException {
+                        attempts.incrementAndGet();
+                        return service.consumePurchase(3, SoomlaApp.getAppContext().getPackageName(), consumeToken);
+                    }
+                }, signal);
+            } finally {
+                mCallGate.exitUrgent();
+            }
+            // consumePurchase isn't idempotent: when a retry finds the item gone, the attempt
+            // that failed (e.g. with a RemoteException) did consume it
+            if (response == IabResult.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED && attempts.get() > 1) {
+               BillingLog.debug(TAG, "Sku {} was consumed by an earlier attempt.", sku);
+               response = IabResult.BILLING_RESPONSE_RESULT_OK;
             }
-
-            SoomlaUtils.LogDebug(TAG, "Consuming sku: " + sku + ", token: " + token);
-            int response = mService.consumePurchase(3, SoomlaApp.getAppContext().getPackageName(), token);
             if (response == IabResult.BILLING_RESPONSE_RESULT_OK) {
-               SoomlaUtils.LogDebug(TAG, "Successfully consumed sku: " + sku);
+               BillingLog.debug(TAG, "Successfully consumed sku: {}", sku);
+               done = true;
+               return true;
             }
             else {
-               SoomlaUtils.LogDebug(TAG, "Error consuming sku " + sku + ". " + IabResult.getResponseDesc(response));
+               if (BillingLog.isDebugEnabled()) {
+                   BillingLog.debug(TAG, "Error consuming sku {}. {}", sku, IabResult.getResponseDesc(response));
+               }
+               // ITEM_NOT_OWNED means it was already consumed, other errors won't go away by retrying
+               done = !isTransientConsumeError(response);
                throw new IabException(response, "Error consuming sku " + sku);
             }
         }
         catch (RemoteException e) {
             throw new IabException(IabResult.IABHELPER_REMOTE_EXCEPTION, "Remote exception while consuming. PurchaseInfo: " + itemInfo, e);
         }
+        finally {
+            CONSUME_JOURNAL.end(itemInfo, done);
+        }
     }
 
+    private static boolean isTransientConsumeError(int response) {
+        return response == BILLING_RESPONSE_RESULT_SERVICE_UNAVAILABLE
+                || response == IabResult.BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE
+                || response == IabResult.BILLING_RESPONSE_RESULT_ERROR;
+    }
 
+    /**
+     * Replays, in the background, consumptions that were started in a previous run (or
+     * earlier in this one) and weren't confirmed by Google Play. Purchases that are being
+     * consumed at the time are left to that consumption.
+     */
+    private void replayConsumeJournal() {
+        // keeps the helper from being disposed by an idle check while the replay runs
+        mOperations.startBackground(IabOperationTracker.Kind.CONSUME);
+        CONSUME_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                try {
+                    // loads the journal off the main thread, the first time
+                    List<IabPurchase> pending = CONSUME_JOURNAL.getPending();
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    if (BillingLog.isDebugEnabled()) {
+                        BillingLog.debug(TAG, "Replaying {} unconfirmed consumptions.", pending.size());
+                    }
+                    for (IabPurchase purchase : pending) {
+                        if (mConnection == null) {
+                            SoomlaUtils.LogDebug(TAG, "Helper was disposed while replaying consumptions.");
+                            return;
+                        }
+                        try {
+                            if (!consume(purchase, null, true)) {
+                                BillingLog.debug(TAG, "Not replaying consumption of {}, it's being consumed.",
+                                        purchase.getSku());
+                            }
+                        } catch (IabException e) {
+                            SoomlaUtils.LogWarning(TAG, "Replayed consumption of " + purchase.getSku()
+                                    + " failed: " + e.getResult().getMessage());
+                        } catch (IllegalStateException e) {
+                            SoomlaUtils.LogDebug(TAG, "Helper was disposed while replaying consumptions.");
+                            return;
+                        }
+                    }
+                } finally {
+                    mOperations.endBackground(IabOperationTracker.Kind.CONSUME);
+                }
+            }
+        });
+    }
 
     /**
      * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
@@ -312,7 +696,23 @@ public class GoogleIabHelper extends IabHelper {
         checkSetupDoneAndThrow("consume");
         List<IabPurchase> purchases = new ArrayList<IabPurchase>();
         purchases.add(purchase);
-        consumeAsyncInternal(purchases, listener, null);
+        consumeAsyncInternal(purchases, listener, null, null, null, CallbackExecutors.currentThread());
+    }
+
+    /**
+     * Same as {@link #consumeAsync(IabPurchase, OnConsumeFinishedListener)}, but notifies the
+     * listener through the given executor instead of the calling thread.
+     *
+     * @param purchase The purchase to be consumed.
+     * @param listener The listener to notify when the consumption operation finishes.
+     * @param callbackExecutor The executor to notify the listener on, e.g.
+     *                         {@link CallbackExecutors#DIRECT}.
+     */
+    public void consumeAsync(IabPurchase purchase, OnConsumeFinishedListener listener, Executor callbackExecutor) {
+        checkSetupDoneAndThrow("consume");
+        List<IabPurchase> purchases = new ArrayList<IabPurchase>();
+        purchases.add(purchase);
+        consumeAsyncInternal(purchases, listener, null, null, null, callbackExecutor);
     }
 
     /**
@@ -322,7 +722,56 @@ public class GoogleIabHelper extends IabHelper {
      */
     public void consumeAsync(List<IabPurchase> purchases, OnConsumeMultiFinishedListener listener) {
         checkSetupDoneAndThrow("consume");
-        consumeAsyncInternal(purchases, null, listener);
+        consumeAsyncInternal(purchases, null, listener, null, null, CallbackExecutors.currentThread());
+    }
+
+    /**
+     * Same as {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}, but also notifies
+     * about every item as soon as its consumption finishes.
+     * Items are consumed concurrently (up to {@link #MAX_CONCURRENT_CONSUMES} at a time), so
+     * <code>itemListener</code> is called in completion order. <code>listener</code> still gets
+     * the results in the order of <code>purchases</code>.
+     *
+     * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
+     * @param listener The listener to notify when the consumption operation finishes.
+     * @param itemListener The listener to notify when each item's consumption finishes.
+     * @return a handle for canceling the items that weren't consumed yet.
+     */
+    public IabCancellationSignal consumeAsync(List<IabPurchase> purchases, OnConsumeMultiFinishedListener listener,
+                                              OnConsumeItemFinishedListener itemListener) {
+        return consumeAsync(purchases, listener, itemListener, CallbackExecutors.currentThread());
+    }
+
+    /**
+     * Same as {@link #consumeAsync(List, OnConsumeMultiFinishedListener, OnConsumeItemFinishedListener)},
+     * but notifies the listeners through the given executor instead of the calling thread.
+     *
+     * @param purchases The list of PurchaseInfo objects representing the purchases to consume.
+     * @param listener The listener to notify when the consumption operation finishes.
+     * @param itemListener The listener to notify when each item's consumption finishes.
+     * @param callbackExecutor The executor to notify the listeners on, e.g.
+     *                         {@link CallbackExecutors#DIRECT}.
+     * @return a handle for canceling the items that weren't consumed yet.
+     */
+    public IabCancellationSignal consumeAsync(List<IabPurchase> purchases, OnConsumeMultiFinishedListener listener,
+                                              OnConsumeItemFinishedListener itemListener, Executor callbackExecutor) {
+        checkSetupDoneAndThrow("consume");
+        IabCancellationSignal signal = new IabCancellationSignal();
+        consumeAsyncInternal(purchases, null, listener, itemListener, signal, callbackExecutor);
+        return signal;
+    }
+
+    /**
+     * Callback that notifies when the buy intent of a purchase flow is started.
+     */
+    public interface OnBuyIntentLaunchedListener {
+        /**
+         * Called right after the buy intent was started.
+         *
+         * @param sku The SKU being purchased.
+         * @param launchedAt When the buy intent was started, in <code>SystemClock.elapsedRealtime()</code>.
+         */
+        public void onBuyIntentLaunched(String sku, long launchedAt);
     }
 
     /**
@@ -352,19 +801,240 @@ public class GoogleIabHelper extends IabHelper {
         public void onConsumeMultiFinished(List<IabPurchase> purchases, List<IabResult> results);
     }
 
+    /**
+     * Callback that notifies when a single item of a multi-item consumption finishes.
+     */
+    public interface OnConsumeItemFinishedListener {
+        /**
+         * Called to notify that the consumption of one item has finished.
+         *
+         * @param purchase The purchase that was (or was to be) consumed.
+         * @param result The result of the consumption operation.
+         * @param index The index of the purchase in the consumed list.
+         */
+        public void onConsumeItemFinished(IabPurchase purchase, IabResult result, int index);
+    }
+
+
+    /**
+     * Same as {@link #restorePurchasesAsync(RestorePurchasessFinishedListener)}, but returns
+     * a handle for canceling the restore.
+     *
+     * @param listener The listener to notify when the restore operation finishes.
+     * @return a handle for canceling the restore.
+     */
+    public IabCancellationSignal restorePurchasesCancelableAsync(RestorePurchasessFinishedListener listener) {
+        IabCancellationSignal signal = new IabCancellationSignal();
+        mRestoreSignal = signal;
+        try {
+            restorePurchasesAsync(listener);
+        } catch (IllegalStateException e) {
+            mRestoreSignal = null;
+            throw e;
+        }
+        return signal;
+    }
+
+    /**
+     * Marks the restored purchases of the given consumable SKUs that are going to be granted
+     * (purchased, and not denied by verification) to be consumed together once they're granted,
+     * instead of one by one. Meant to be called right before the restored purchases are handed
+     * over to be granted, and followed by {@link #consumeRestoredAsync} once they were.
+     *
+     * While a purchase is marked, {@link #consumeIfNotAutoConsumed} takes it as granted: it
+     * records it in the consume journal, so it's consumed even if the app dies before
+     * {@link #consumeRestoredAsync}, and returns without consuming it.
+     *
+     * @param purchases The restored purchases.
+     * @param consumableSkus The SKUs of the consumable items.
+     */
+    public void deferRestoredConsumes(List<IabPurchase> purchases, Set<String> consumableSkus) {
+        for (IabPurchase purchase : purchases) {
+            if (ITEM_TYPE_INAPP.equals(purchase.getItemType()) && consumableSkus.contains(purchase.getSku())
+                    && purchase.getPurchaseState() == 0 && purchase.isServerVerified()
+                    && !TextUtils.isEmpty(purchase.getToken())) {
+                synchronized (GRANTED_RESTORED_CONSUMABLES) {
+                    DEFERRED_CONSUME_TOKENS.add(purchase.getToken());
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumes, in the background, the restored consumables that were granted since
+     * {@link #deferRestoredConsumes}, and stops deferring the consumption of the others.
+     *
+     * Runs as a consume operation. If a purchase or another consumption is in progress, the
+     * granted consumables are left in the consume journal, and consumed when it's replayed on
+     * the next setup.
+     *
+     * @param listener The listener to notify when the consumptions finish, always called.
+     * @param callbackExecutor The executor to notify the listener on.
+     */
+    public void consumeRestoredAsync(final OnConsumeMultiFinishedListener listener, Executor callbackExecutor) {
+        final List<IabPurchase> consumables;
+        synchronized (GRANTED_RESTORED_CONSUMABLES) {
+            consumables = new ArrayList<IabPurchase>(GRANTED_RESTORED_CONSUMABLES.values());
+            GRANTED_RESTORED_CONSUMABLES.clear();
+            DEFERRED_CONSUME_TOKENS.clear();
+        }
+
+        if (!consumables.isEmpty() && isSetupDone()) {
+            try {
+                if (BillingLog.isDebugEnabled()) {
+                    BillingLog.debug(TAG, "Consuming {} restored consumables.", consumables.size());
+                }
+                consumeAsyncInternal(consumables, null, listener, null, null, callbackExecutor);
+                return;
+            } catch (IllegalStateException e) {
+                BillingLog.debug(TAG, "Not consuming restored consumables now: {}", e.getMessage());
+            }
+        }
+
+        callbackExecutor.execute(new Runnable() {
+            public void run() {
+                listener.onConsumeMultiFinished(new ArrayList<IabPurchase>(), new ArrayList<IabResult>());
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #fetchSkusDetailsAsync(List, FetchSkusDetailsFinishedListener)}, but returns
+     * a handle for canceling the fetch.
+     *
+     * @param skus The SKUs to fetch the details of.
+     * @param listener The listener to notify when the fetch operation finishes.
+     * @return a handle for canceling the fetch.
+     */
+    public IabCancellationSignal fetchSkusDetailsCancelableAsync(List<String> skus, FetchSkusDetailsFinishedListener listener) {
+        IabCancellationSignal signal = new IabCancellationSignal();
+        mFetchSkusSignal = signal;
+        try {
+            fetchSkusDetailsAsync(skus, listener);
+        } catch (IllegalStateException e) {
+            mFetchSkusSignal = null;
+            throw e;
+        }
+        return signal;
+    }
+
+    /**
+     * Consumes the given purchase, unless it's a restored consumable whose consumption is
+     * deferred (see {@link #deferRestoredConsumes}). Those are recorded in the consume journal
+     * and left for {@link #consumeRestoredAsync}.
+     * This method may block or take long to return. Do not call from the UI thread.
+     *
+     * @param purchase The purchase to consume.
+     * @throws IabException if there is a problem during consumption.
+     */
+    public void consumeIfNotAutoConsumed(IabPurchase purchase) throws IabException {
+        String token = purchase.getToken();
+        if (token != null) {
+            synchronized (GRANTED_RESTORED_CONSUMABLES) {
+                if (DEFERRED_CONSUME_TOKENS.remove(token)) {
+                    // granted: from now on it must get consumed, even if the app dies first
+                    CONSUME_JOURNAL.record(purchase);
+                    GRANTED_RESTORED_CONSUMABLES.put(token, purchase);
+                    BillingLog.debug(TAG, "Sku {} was granted, it's consumed with the other restored consumables.",
+                            purchase.getSku());
+                    return;
+                }
+            }
+        }
+        consume(purchase);
+    }
+
+
+    /**
+     * Returns true if any async operation is in progress.
+     */
+    @Override
+    public boolean isAsyncInProgress() {
+        return mOperations.isAnyRunning();
+    }
+
+    /**
+     * Returns the number of async operations of the given kind that are in progress.
+     *
+     * @param kind the kind of operations to count.
+     */
+    public int getAsyncOperationCount(IabOperationTracker.Kind kind) {
+        return mOperations.getRunningCount(kind);
+    }
+
 
     /** Protected functions **/
 
+    /**
+     * Replaces the parent's single async operation slot with {@link IabOperationTracker},
+     * so read-only operations don't have to wait for each other or for a purchase.
+     */
+    @Override
+    protected void flagStartAsync(String operation) {
+        mOperations.start(IabOperationTracker.Kind.fromOperationName(operation), operation);
+    }
+
+    /**
+     * The parent calls this from its success and failure callbacks without telling which
+     * operation ended, so the callbacks below end the right operation kind instead.
+     */
+    @Override
+    protected void flagEndAsync() {
+    }
+
+    @Override
+    protected void restorePurchasesSuccess(IabInventory inventory) {
+        mOperations.end(IabOperationTracker.Kind.RESTORE);
+        super.restorePurchasesSuccess(inventory);
+    }
+
+    @Override
+    protected void restorePurchasesFailed(IabResult result) {
+        mOperations.end(IabOperationTracker.Kind.RESTORE);
+        super.restorePurchasesFailed(result);
+    }
+
+    @Override
+    protected void fetchSkusDetailsSuccess(IabInventory inventory) {
+        mOperations.end(IabOperationTracker.Kind.FETCH_SKUS);
+        super.fetchSkusDetailsSuccess(inventory);
+    }
+
+    @Override
+    protected void fetchSkusDetailsFailed(IabResult result) {
+        mOperations.end(IabOperationTracker.Kind.FETCH_SKUS);
+        super.fetchSkusDetailsFailed(result);
+    }
+
+    @Override
+    protected void purchaseSucceeded(IabPurchase purchase) {
+        mOperations.end(IabOperationTracker.Kind.PURCHASE);
+        if (purchase != null) {
+            // buy intents prefetched before this purchase are of no use anymore
+            mBuyIntentCache.invalidate(purchase.getSku());
+        }
+        super.purchaseSucceeded(purchase);
+    }
+
+    @Override
+    protected void purchaseFailed(IabResult result, IabPurchase purchase) {
+        mOperations.end(IabOperationTracker.Kind.PURCHASE);
+        super.purchaseFailed(result, purchase);
+    }
+
     /**
      * see parent
      */
     @Override
     protected void restorePurchasesAsyncInner() {
+        final IabCancellationSignal signal = mRestoreSignal != null ? mRestoreSignal : new IabCancellationSignal();
+        mRestoreSignal = null;
+
         (new Thread(new Runnable() {
             public void run() {
                 IabInventory inv = null;
                 try {
-                    inv = restorePurchases();
+                    inv = restorePurchases(signal);
                 }
                 catch (IabException ex) {
                     IabResult result = ex.getResult();
@@ -382,11 +1052,14 @@ public class GoogleIabHelper extends IabHelper {
      */
     @Override
     protected void fetchSkusDetailsAsyncInner(final List<String> skus) {
+        final IabCancellationSignal signal = mFetchSkusSignal != null ? mFetchSkusSignal : new IabCancellationSignal();
+        mFetchSkusSignal = null;
+
         (new Thread(new Runnable() {
             public void run() {
                 IabInventory inv = null;
                 try {
-                    inv = fetchSkusDetails(skus);
+                    inv = fetchSkusDetails(skus, signal);
                 }
                 catch (IabException ex) {
                     IabResult result = ex.getResult();
@@ -410,9 +1083,20 @@ public class GoogleIabHelper extends IabHelper {
             throw new IllegalArgumentException("Wrong purchase item type: " + itemType);
         }
 
+        PendingIntent prefetchedIntent = mBuyIntentCache.take(itemType, sku, extraData);
+        if (prefetchedIntent != null) {
+            SoomlaUtils.LogDebug(TAG, "Launching prefetched buy intent for " + sku + ". Request code: " + RC_REQUEST);
+            try {
+                startBuyIntent(act, prefetchedIntent, itemType, sku);
+                return;
+            } catch (SendIntentException e) {
+                SoomlaUtils.LogWarning(TAG, "Prefetched buy intent for " + sku + " can't be sent anymore. Getting a new one.");
+            }
+        }
+
         try {
             SoomlaUtils.LogDebug(TAG, "Constructing buy intent for " + sku + ", item type: " + itemType);
-            Bundle buyIntentBundle = mService.getBuyIntent(3, SoomlaApp.getAppContext().getPackageName(), sku, itemType, extraData);
+            Bundle buyIntentBundle = getBuyIntent(itemType, sku, extraData, false);
             buyIntentBundle.putString("PURCHASE_SKU", sku);
             int response = getResponseCodeFromBundle(buyIntentBundle);
             if (response != IabResult.BILLING_RESPONSE_RESULT_OK) {
@@ -421,19 +1105,15 @@ public class GoogleIabHelper extends IabHelper {
                 IabPurchase failPurchase = new IabPurchase(itemType, "{\"productId\":" + sku + "}", null);
                 result = new IabResult(response, "Unable to buy item");
                 purchaseFailed(result, failPurchase);
-                act.finish();
+                if (act instanceof GooglePlayIabService.IabActivity) {
+                    act.finish();
+                }
                 return;
             }
 
             PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
             SoomlaUtils.LogDebug(TAG, "Launching buy intent for " + sku + ". Request code: " + RC_REQUEST);
-            mPurchasingItemSku = sku;
-            mPurchasingItemType = itemType;
-
-            act.startIntentSenderForResult(pendingIntent.getIntentSender(),
-                    RC_REQUEST, new Intent(),
-                    Integer.valueOf(0), Integer.valueOf(0),
-                    Integer.valueOf(0));
+            startBuyIntent(act, pendingIntent, itemType, sku);
         } catch (SendIntentException e) {
             SoomlaUtils.LogError(TAG, "SendIntentException while launching purchase flow for sku " + sku);
             e.printStackTrace();
@@ -446,6 +1126,9 @@ public class GoogleIabHelper extends IabHelper {
 
             result = new IabResult(IabResult.IABHELPER_REMOTE_EXCEPTION, "Remote exception while starting purchase flow");
             purchaseFailed(result, null);
+        } catch (IabException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't get buy intent for sku " + sku + ": " + e.getResult().getMessage());
+            purchaseFailed(e.getResult(), null);
         } catch (JSONException e) {
             SoomlaUtils.LogError(TAG, "Failed to generate failing purchase.");
             e.printStackTrace();
@@ -460,49 +1143,163 @@ public class GoogleIabHelper extends IabHelper {
 
     /** Private functions **/
 
+    private void startBuyIntent(Activity act, PendingIntent buyIntent, String itemType, String sku)
+            throws SendIntentException {
+        mPurchasingItemSku = sku;
+        mPurchasingItemType = itemType;
+
+        Fragment fragment = mLaunchFragment;
+        if (fragment != null) {
+            fragment.startIntentSenderForResult(buyIntent.getIntentSender(),
+                    RC_REQUEST, new Intent(),
+                    Integer.valueOf(0), Integer.valueOf(0),
+                    Integer.valueOf(0), null);
+        } else {
+            act.startIntentSenderForResult(buyIntent.getIntentSender(),
+                    RC_REQUEST, new Intent(),
+                    Integer.valueOf(0), Integer.valueOf(0),
+                    Integer.valueOf(0));
+        }
+        OnBuyIntentLaunchedListener launchedListener = mBuyIntentLaunchedListener;
+        if (launchedListener != null) {
+            launchedListener.onBuyIntentLaunched(sku, SystemClock.elapsedRealtime());
+        }
+    }
+
     /**
      * The inner functions that consumes purchases.
      *
      * @param purchases the purchases to consume.
      * @param singleListener The listener to invoke when the consumption completes.
      * @param multiListener Multi listener for when we have multiple consumption operations.
+     * @param itemListener Listener for every item's consumption, when we have multiple consumption operations.
+     * @param signal The cancellation signal of the consumption, can be null.
+     * @param callbackExecutor The executor to notify the listeners on.
      */
     private void consumeAsyncInternal(final List<IabPurchase> purchases,
                                       final OnConsumeFinishedListener singleListener,
-                                      final OnConsumeMultiFinishedListener multiListener) {
-        final Handler handler = new Handler();
+                                      final OnConsumeMultiFinishedListener multiListener,
+                                      final OnConsumeItemFinishedListener itemListener,
+                                      final IabCancellationSignal signal,
+                                      final Executor callbackExecutor) {
         flagStartAsync("consume");
-        (new Thread(new Runnable() {
+        CONSUME_EXECUTOR.execute(new Runnable() {
             public void run() {
-                final List<IabResult> results = new ArrayList<IabResult>();
-                for (IabPurchase purchase : purchases) {
-                    try {
-                        consume(purchase);
-                        results.add(new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                    }
-                    catch (IabException ex) {
-                        results.add(ex.getResult());
-                    }
-                }
+                final List<IabResult> results = consumeAll(purchases, callbackExecutor, itemListener, signal);
 
-                flagEndAsync();
+                mOperations.end(IabOperationTracker.Kind.CONSUME);
 
                 if (singleListener != null) {
-                    handler.post(new Runnable() {
+                    callbackExecutor.execute(new Runnable() {
                         public void run() {
                             singleListener.onConsumeFinished(purchases.get(0), results.get(0));
                         }
                     });
                 }
                 if (multiListener != null) {
-                    handler.post(new Runnable() {
+                    callbackExecutor.execute(new Runnable() {
                         public void run() {
                             multiListener.onConsumeMultiFinished(purchases, results);
                         }
                     });
                 }
             }
-        })).start();
+        });
+    }
+
+    /**
+     * Consumes the given purchases, up to {@link #MAX_CONCURRENT_CONSUMES} at a time.
+     * Blocks until all of them are done. A single purchase is consumed on the calling thread.
+     *
+     * The calling thread takes part in the consumption, so the items get consumed even when
+     * the shared consume executor is busy.
+     *
+     * @param purchases the purchases to consume.
+     * @param callbackExecutor the executor to notify <code>itemListener</code> on, can be null if there's no listener.
+     * @param itemListener notified when each item's consumption finishes, can be null.
+     * @param signal the cancellation signal of the consumption, can be null.
+     * @return the results of the consumptions, in the order of <code>purchases</code>.
+     */
+    private List<IabResult> consumeAll(final List<IabPurchase> purchases, final Executor callbackExecutor,
+                                       final OnConsumeItemFinishedListener itemListener,
+                                       final IabCancellationSignal signal) {
+        final IabResult[] results = new IabResult[purchases.size()];
+        if (purchases.isEmpty()) {
+            return new ArrayList<IabResult>();
+        }
+        if (purchases.size() == 1) {
+            consumeAt(purchases, 0, results, callbackExecutor, itemListener, signal);
+            return Arrays.asList(results);
+        }
+
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(purchases.size());
+        Runnable worker = new Runnable() {
+            public void run() {
+                int index;
+                while ((index = nextIndex.getAndIncrement()) < purchases.size()) {
+                    try {
+                        consumeAt(purchases, index, results, callbackExecutor, itemListener, signal);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+
+        int helpers = Math.min(purchases.size(), MAX_CONCURRENT_CONSUMES) - 1;
+        for (int i = 0; i < helpers; i++) {
+            CONSUME_EXECUTOR.execute(worker);
+        }
+        worker.run();
+
+        try {
+            while (!done.await(1, TimeUnit.MINUTES)) {
+                SoomlaUtils.LogDebug(TAG, "Still waiting for consumptions to finish.");
+            }
+        } catch (InterruptedException e) {
+            SoomlaUtils.LogError(TAG, "Interrupted while waiting for consumptions to finish.");
+            Thread.currentThread().interrupt();
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new IabResult(IabResult.IABHELPER_UNKNOWN_ERROR, "Consumption of sku "
+                        + purchases.get(i).getSku() + " didn't finish.");
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Consumes one of the purchases of {@link #consumeAll} and records its result.
+     */
+    private void consumeAt(List<IabPurchase> purchases, final int index, IabResult[] results,
+                           Executor callbackExecutor, final OnConsumeItemFinishedListener itemListener,
+                           IabCancellationSignal signal) {
+        final IabPurchase purchase = purchases.get(index);
+        IabResult result;
+        try {
+            consume(purchase, signal);
+            result = new IabResult(IabResult.BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku());
+        }
+        catch (IabException ex) {
+            result = ex.getResult();
+        }
+        catch (IllegalStateException ex) {
+            // the helper was disposed while the consumption was running
+            result = new IabResult(IABHELPER_CANCELED, "Consumption of sku " + purchase.getSku() + " was canceled.");
+        }
+        results[index] = result;
+
+        if (itemListener != null) {
+            final IabResult itemResult = result;
+            callbackExecutor.execute(new Runnable() {
+                public void run() {
+                    itemListener.onConsumeItemFinished(purchase, itemResult, index);
+                }
+            });
+        }
     }
 
     /**
@@ -512,12 +1309,12 @@ public class GoogleIabHelper extends IabHelper {
      *     Ignored if null or if querySkuDetails is false.
      * @throws IabException if a problem occurs while refreshing the inventory.
      */
-    private IabInventory fetchSkusDetails(List<String> skus) throws IabException {
+    private IabInventory fetchSkusDetails(List<String> skus, IabCancellationSignal signal) throws IabException {
         checkSetupDoneAndThrow("fetchSkusDetails");
         try {
             IabInventory inv = new IabInventory();
-            int inAppResult = querySkuDetails(ITEM_TYPE_INAPP, inv, skus);
-            int subsResult = querySkuDetails(ITEM_TYPE_SUBS, inv, skus);
+            int inAppResult = querySkuDetails(ITEM_TYPE_INAPP, inv, skus, signal);
+            int subsResult = querySkuDetails(ITEM_TYPE_SUBS, inv, skus, signal);
             if (inAppResult != IabResult.BILLING_RESPONSE_RESULT_OK
                     || subsResult != IabResult.BILLING_RESPONSE_RESULT_OK) {
                 throw new IabException(inAppResult != inAppResult ? inAppResult : subsResult, "Error refreshing inventory (querying prices of items).");
@@ -539,30 +1336,36 @@ public class GoogleIabHelper extends IabHelper {
      * @throws JSONException
      * @throws RemoteException
      */
-    private int queryPurchases(IabInventory inv, String itemType) throws JSONException, RemoteException {
+    private int queryPurchases(IabInventory inv, String itemType, IabCancellationSignal signal)
+            throws JSONException, RemoteException, IabException {
         // Query purchases
-        SoomlaUtils.LogDebug(TAG, "Querying owned items, item type: " + itemType);
-        SoomlaUtils.LogDebug(TAG, "Package name: " + SoomlaApp.getAppContext().getPackageName());
+        BillingLog.debug(TAG, "Querying owned items, item type: {}", itemType);
+        if (BillingLog.isDebugEnabled()) {
+            BillingLog.debug(TAG, "Package name: {}", SoomlaApp.getAppContext().getPackageName());
+        }
         boolean verificationFailed = false;
         String continueToken = null;
+        BillingPayloadParser parser = new BillingPayloadParser();
 
         do {
-            SoomlaUtils.LogDebug(TAG, "Calling getPurchases with continuation token: " + continueToken);
-            if (mService == null) {
-                if (service != null) {
-                    mService = IInAppBillingService.Stub.asInterface(service);
-                } else {
-                    return IabResult.IABHELPER_VERIFICATION_FAILED;
+            BillingLog.debug(TAG, "Calling getPurchases with continuation token: {}", continueToken);
+            mCallGate.yieldToUrgent();
+            final String queryItemType = itemType;
+            final String queryContinueToken = continueToken;
+            Bundle ownedItems = executeWithRetry("getPurchases", new BillingCallExecutor.BillingCall<Bundle>() {
+                @Override
+                public Bundle call(IInAppBillingService service) throws RemoteException {
+                    return service.getPurchases(3, SoomlaApp.getAppContext().getPackageName(),
+                            queryItemType, queryContinueToken);
                 }
-            }
-            Bundle ownedItems = mService.getPurchases(3,
-                    SoomlaApp.getAppContext().getPackageName(),
-                    itemType, continueToken);
+            }, signal);
 
             int response = getResponseCodeFromBundle(ownedItems);
-            SoomlaUtils.LogDebug(TAG, "Owned items response: " + String.valueOf(response));
+            BillingLog.debug(TAG, "Owned items response: {}", response);
             if (response != IabResult.BILLING_RESPONSE_RESULT_OK) {
-                SoomlaUtils.LogDebug(TAG, "getPurchases() failed: " + IabResult.getResponseDesc(response));
+                if (BillingLog.isDebugEnabled()) {
+                    BillingLog.debug(TAG, "getPurchases() failed: {}", IabResult.getResponseDesc(response));
+                }
                 return response;
             }
             if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
@@ -587,12 +1390,12 @@ public class GoogleIabHelper extends IabHelper {
                 String signature = signatureList.get(i);
                 String sku = ownedSkus.get(i);
                 if (Security.verifyPurchase(publicKey, purchaseData, signature)) {
-                    SoomlaUtils.LogDebug(TAG, "Sku is owned: " + sku);
-                    IabPurchase purchase = new IabPurchase(itemType, purchaseData, signature);
+                    BillingLog.debug(TAG, "Sku is owned: {}", sku);
+                    IabPurchase purchase = ParsedIabPurchase.fromJson(itemType, purchaseData, signature, parser);
 
                     if (TextUtils.isEmpty(purchase.getToken())) {
                         SoomlaUtils.LogWarning(TAG, "BUG: empty/null token!");
-                        SoomlaUtils.LogDebug(TAG, "IabPurchase data: " + purchaseData);
+                        BillingLog.debug(TAG, "IabPurchase data: {}", purchaseData);
                     }
 
                     // Record ownership and token
@@ -600,14 +1403,14 @@ public class GoogleIabHelper extends IabHelper {
                 }
                 else {
                     SoomlaUtils.LogWarning(TAG, "IabPurchase signature verification **FAILED**. Not adding item.");
-                    SoomlaUtils.LogDebug(TAG, "   IabPurchase data: " + purchaseData);
-                    SoomlaUtils.LogDebug(TAG, "   Signature: " + signature);
+                    BillingLog.debug(TAG, "   IabPurchase data: {}", purchaseData);
+                    BillingLog.debug(TAG, "   Signature: {}", signature);
                     verificationFailed = true;
                 }
             }
 
             continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            SoomlaUtils.LogDebug(TAG, "Continuation token: " + continueToken);
+            BillingLog.debug(TAG, "Continuation token: {}", continueToken);
         } while (!TextUtils.isEmpty(continueToken));
 
         return verificationFailed ? IabResult.IABHELPER_VERIFICATION_FAILED : IabResult.BILLING_RESPONSE_RESULT_OK;
@@ -618,12 +1421,12 @@ public class GoogleIabHelper extends IabHelper {
      *
      * @throws IabException
      */
-    private IabInventory restorePurchases() throws IabException {
+    private IabInventory restorePurchases(IabCancellationSignal signal) throws IabException {
         checkSetupDoneAndThrow("restorePurchases");
         try {
             IabInventory inv = new IabInventory();
-            int inAppResult = queryPurchases(inv, ITEM_TYPE_INAPP);
-            int subsResult = queryPurchases(inv, ITEM_TYPE_SUBS);
+            int inAppResult = queryPurchases(inv, ITEM_TYPE_INAPP, signal);
+            int subsResult = queryPurchases(inv, ITEM_TYPE_SUBS, signal);
             if (inAppResult != IabResult.BILLING_RESPONSE_RESULT_OK
                     || subsResult != IabResult.BILLING_RESPONSE_RESULT_OK) {
                 throw new IabException(inAppResult != 0 ? inAppResult : subsResult, "Error refreshing inventory (querying owned items).");
@@ -644,8 +1447,8 @@ public class GoogleIabHelper extends IabHelper {
      * @throws RemoteException
      * @throws JSONException
      */
-    private int querySkuDetails(String itemType, IabInventory inv, List<String> skus)
-            throws RemoteException, JSONException {
+    private int querySkuDetails(String itemType, IabInventory inv, List<String> skus, IabCancellationSignal signal)
+            throws RemoteException, JSONException, IabException {
         SoomlaUtils.LogDebug(TAG, "Querying SKU details.");
 
         // a list here is a bug no matter what, there is no point in
@@ -667,12 +1470,15 @@ public class GoogleIabHelper extends IabHelper {
             ArrayList<String> skuSubList = new ArrayList<String>(
                     skuList.subList(0, Math.min(SKU_QUERY_MAX_CHUNK_SIZE, skuList.size())));
             skuList.removeAll(skuSubList);
-            final int chunkResponse = querySkuDetailsChunk(itemType, inv, skuSubList);
+            mCallGate.yieldToUrgent();
+            final int chunkResponse = querySkuDetailsChunk(itemType, inv, skuSubList, signal);
             if (chunkResponse != IabResult.BILLING_RESPONSE_RESULT_OK) {
                 // todo: TBD skip chunk or abort?
                 // for now aborting at that point
-                SoomlaUtils.LogDebug(TAG, String.format("querySkuDetails[chunk=%d] failed: %s",
-                        chunkIndex, IabResult.getResponseDesc(chunkResponse)));
+                if (BillingLog.isDebugEnabled()) {
+                    BillingLog.debug(TAG, "querySkuDetails[chunk={}] failed: {}",
+                            chunkIndex, IabResult.getResponseDesc(chunkResponse));
+                }
                 return chunkResponse; // ABORT
             }
             chunkIndex++;
@@ -687,16 +1493,25 @@ public class GoogleIabHelper extends IabHelper {
      * @throws RemoteException
      * @throws JSONException
      */
-    private int querySkuDetailsChunk(String itemType, IabInventory inv, ArrayList<String> chunkSkuList) throws RemoteException, JSONException {
-        Bundle querySkus = new Bundle();
+    private int querySkuDetailsChunk(String itemType, IabInventory inv, ArrayList<String> chunkSkuList,
+                                     IabCancellationSignal signal) throws RemoteException, JSONException, IabException {
+        final Bundle querySkus = new Bundle();
         querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, chunkSkuList);
-        Bundle skuDetails = mService.getSkuDetails(3, SoomlaApp.getAppContext().getPackageName(),
-                itemType, querySkus);
+        final String queryItemType = itemType;
+        Bundle skuDetails = executeWithRetry("getSkuDetails", new BillingCallExecutor.BillingCall<Bundle>() {
+            @Override
+            public Bundle call(IInAppBillingService service) throws RemoteException {
+                return service.getSkuDetails(3, SoomlaApp.getAppContext().getPackageName(),
+                        queryItemType, querySkus);
+            }
+        }, signal);
 
         if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
             int response = getResponseCodeFromBundle(skuDetails);
             if (response != IabResult.BILLING_RESPONSE_RESULT_OK) {
-                SoomlaUtils.LogDebug(TAG, "querySkuDetailsChunk() failed: " + IabResult.getResponseDesc(response));
+                if (BillingLog.isDebugEnabled()) {
+                    BillingLog.debug(TAG, "querySkuDetailsChunk() failed: {}", IabResult.getResponseDesc(response));
+                }
                 return response;
             }
             else {
@@ -708,9 +1523,10 @@ public class GoogleIabHelper extends IabHelper {
         ArrayList<String> responseList = skuDetails.getStringArrayList(
                 RESPONSE_GET_SKU_DETAILS_LIST);
 
+        BillingPayloadParser parser = new BillingPayloadParser();
         for (String thisResponse : responseList) {
-            IabSkuDetails d = new IabSkuDetails(itemType, thisResponse);
-            SoomlaUtils.LogDebug(TAG, "Got sku details: " + d);
+            IabSkuDetails d = LazyIabSkuDetails.fromJson(itemType, thisResponse, parser);
+            BillingLog.debug(TAG, "Got sku details: {}", d);
             inv.addSkuDetails(d);
         }
 
@@ -758,9 +1574,7 @@ public class GoogleIabHelper extends IabHelper {
     private static String TAG = "SOOMLA GoogleIabHelper";
 
     // Connection to the service
-    private IInAppBillingService mService;
-    private ServiceConnection mServiceConn;
-    private IBinder service;
+    private volatile BillingServiceConnection mConnection;
 
     // The item type of the current purchase flow
     private String mPurchasingItemType;
@@ -768,6 +1582,56 @@ public class GoogleIabHelper extends IabHelper {
     // The SKU of the item in the current purchase flow
     private String mPurchasingItemSku;
 
+    // The fragment the current purchase flow is launched from, if any
+    private Fragment mLaunchFragment;
+
+    // Notified when the buy intent of the current launch is started, if any
+    private OnBuyIntentLaunchedListener mBuyIntentLaunchedListener;
+
+
+    // The async operations in progress
+    private final IabOperationTracker mOperations = new IabOperationTracker();
+
+    // Lets buy intents and consumptions go ahead of background queries
+    private final BillingCallGate mCallGate = new BillingCallGate(MAX_BACKGROUND_YIELD_MILLIS);
+
+    // Runs the billing service calls with a deadline
+    private final BillingCallExecutor mCallExecutor = new BillingCallExecutor(DEFAULT_BILLING_CALL_TIMEOUT_MILLIS);
+    private volatile BillingRetryPolicy mRetryPolicy = BillingRetryPolicy.DEFAULT;
+
+    // Buy intents fetched ahead of the purchase flow
+    private volatile BuyIntentCache mBuyIntentCache =
+            new BuyIntentCache(BuyIntentCache.DEFAULT_TTL_MILLIS, BuyIntentCache.DEFAULT_MAX_ENTRIES);
+
+    // Runs consumptions, shared by all helpers. Its threads go away when it's idle
+    private static final ThreadPoolExecutor CONSUME_EXECUTOR = new ThreadPoolExecutor(
+            MAX_CONCURRENT_CONSUMES, MAX_CONCURRENT_CONSUMES, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    static {
+        CONSUME_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    // Runs buy intent prefetches one at a time, shared by all helpers. Its thread goes away when it's idle
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(
+            1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    static {
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    // Consumptions that weren't confirmed by Google Play yet, shared by all helpers so it's
+    // loaded from storage only once
+    private static final ConsumeJournal CONSUME_JOURNAL = new ConsumeJournal();
+
+    // Cancellation signals handed over to the next restore and fetch
+    private IabCancellationSignal mRestoreSignal;
+    private IabCancellationSignal mFetchSkusSignal;
+
+    // Restored consumables whose consumption waits for their grant, and the granted ones waiting
+    // for consumeRestoredAsync. Shared by all helpers, since the restore's helper may be replaced
+    // by the time they're granted. Guarded by GRANTED_RESTORED_CONSUMABLES
+    private static final Set<String> DEFERRED_CONSUME_TOKENS = new HashSet<String>();
+    private static final Map<String, IabPurchase> GRANTED_RESTORED_CONSUMABLES = new LinkedHashMap<String, IabPurchase>();
+
     private static final int RC_REQUEST = 10001;
 
 }
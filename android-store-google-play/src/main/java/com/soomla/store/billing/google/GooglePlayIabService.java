@@ -16,20 +16,19 @@
 package com.soomla.store.billing.google;
 
 import android.app.Activity;
+import android.app.Fragment;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Looper;
 import android.os.Process;
-import android.text.TextUtils;
+import android.os.SystemClock;
+import com.soomla.BusProvider;
 import com.soomla.SoomlaApp;
 import com.soomla.SoomlaConfig;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.store.SoomlaStore;
 import com.soomla.store.billing.IIabService;
 import com.soomla.store.billing.IabCallbacks;
@@ -39,11 +38,18 @@ import com.soomla.store.billing.IabInventory;
 import com.soomla.store.billing.IabPurchase;
 import com.soomla.store.billing.IabResult;
 import com.soomla.store.billing.IabSkuDetails;
+import com.soomla.store.events.UnexpectedStoreErrorEvent;
+import org.json.JSONException;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This is the Google Play plugin implementation of IIabService.
@@ -115,7 +121,20 @@ public class GooglePlayIabService implements IIabService {
      */
     @Override
     public void consume(IabPurchase purchase) throws IabException {
-        mHelper.consume(purchase);
+        mHelper.consumeIfNotAutoConsumed(purchase);
+    }
+
+    /**
+     * Makes restores consume the restored purchases of the given consumable SKUs together, in
+     * the background, instead of one by one as they're granted. The purchases are granted
+     * first, as before, and the ones that were granted are consumed once the restore listener
+     * returns. A granted purchase is recorded in the consume journal before that, so it's still
+     * consumed (on the next setup) if the app dies in between.
+     *
+     * @param consumableSkus the product ids of the consumable items, or null to turn it off.
+     */
+    public void setRestoreConsumableSkus(Set<String> consumableSkus) {
+        mRestoreConsumableSkus = consumableSkus != null ? new HashSet<String>(consumableSkus) : null;
     }
 
     /**
@@ -155,37 +174,50 @@ public class GooglePlayIabService implements IIabService {
             String err = "publicKey is null or empty. Can't initialize store!!";
             SoomlaUtils.LogError(TAG, err);
         }
-        edit.commit();
+        edit.apply();
     }
 
     @Override
     public void configVerifyPurchases(Map<String, Object> config) {
 
-        KeyValueStorage.deleteKeyValue(VERIFY_PURCHASES_KEY);
-        KeyValueStorage.deleteKeyValue(VERIFY_CLIENT_ID_KEY);
-        KeyValueStorage.deleteKeyValue(VERIFY_CLIENT_SECRET_KEY);
-        KeyValueStorage.deleteKeyValue(VERIFY_REFRESH_TOKEN_KEY);
+        // persisted in the background - this runs on the startup path.
+        // the stored settings are only cleared if a previous config may have stored them. an
+        // install without the marker (new, or upgraded from a version without it) clears them once
+        SharedPreferences prefs = SoomlaApp.getAppContext().
+                getSharedPreferences(SoomlaConfig.PREFS_NAME, Context.MODE_PRIVATE);
+        if (prefs.getBoolean(VERIFY_CONFIGURED_KEY, true)) {
+            DeferredKeyValueStorage.deleteKeyValue(VERIFY_PURCHASES_KEY);
+            DeferredKeyValueStorage.deleteKeyValue(VERIFY_CLIENT_ID_KEY);
+            DeferredKeyValueStorage.deleteKeyValue(VERIFY_CLIENT_SECRET_KEY);
+            DeferredKeyValueStorage.deleteKeyValue(VERIFY_REFRESH_TOKEN_KEY);
+            if (config == null) {
+                prefs.edit().putBoolean(VERIFY_CONFIGURED_KEY, false).apply();
+            }
+        }
+        mVerificationConfig = VerificationConfig.DISABLED;
         if (config != null) {
+            VerificationConfig verificationConfig;
             try {
-                checkStringConfigItem(config, "clientId");
-                checkStringConfigItem(config, "clientSecret");
-                checkStringConfigItem(config, "refreshToken");
+                verificationConfig = new VerificationConfig(config);
             } catch (IllegalArgumentException e) {
                 SoomlaUtils.LogError(TAG, e.getMessage());
                 return;
             }
 
-            Boolean verifyOnServerFailure = (Boolean) config.get("verifyOnServerFailure");
-            if (verifyOnServerFailure == null) {
-                verifyOnServerFailure = false;
-            }
+            DeferredKeyValueStorage.setValue(VERIFY_CLIENT_ID_KEY, verificationConfig.getClientId());
+            DeferredKeyValueStorage.setValue(VERIFY_CLIENT_SECRET_KEY, verificationConfig.getClientSecret());
+            DeferredKeyValueStorage.setValue(VERIFY_REFRESH_TOKEN_KEY, verificationConfig.getRefreshToken());
+            DeferredKeyValueStorage.setValue(VERIFY_ON_SERVER_FAILURE, String.valueOf(verificationConfig.isVerifyOnServerFailure()));
+
+            DeferredKeyValueStorage.setValue(VERIFY_PURCHASES_KEY, "yes");
+            prefs.edit().putBoolean(VERIFY_CONFIGURED_KEY, true).apply();
 
-            KeyValueStorage.setValue(VERIFY_CLIENT_ID_KEY, (String) config.get("clientId"));
-            KeyValueStorage.setValue(VERIFY_CLIENT_SECRET_KEY, (String) config.get("clientSecret"));
-            KeyValueStorage.setValue(VERIFY_REFRESH_TOKEN_KEY, (String) config.get("refreshToken"));
-            KeyValueStorage.setValue(VERIFY_ON_SERVER_FAILURE, verifyOnServerFailure.toString());
+            mVerificationCache = new VerificationCache(verificationConfig.getVerifiedCacheTtl(),
+                    verificationConfig.getFailedCacheTtl());
+            mVerificationConfig = verificationConfig;
 
-            KeyValueStorage.setValue(VERIFY_PURCHASES_KEY, "yes");
+            // purchases left unverified from a previous run
+            mPendingVerifications.resume();
         }
     }
 
@@ -195,11 +227,201 @@ public class GooglePlayIabService implements IIabService {
     }
 
     public void setAccessToken(String token) {
-        KeyValueStorage.setValue(VERIFY_ACCESS_TOKEN_KEY, token);
+        DeferredKeyValueStorage.setValue(VERIFY_ACCESS_TOKEN_KEY, token);
     }
 
     public String getAccessToken() {
-        return KeyValueStorage.getValue(VERIFY_ACCESS_TOKEN_KEY);
+        return DeferredKeyValueStorage.getValue(VERIFY_ACCESS_TOKEN_KEY);
+    }
+
+    /**
+     * Sets the listener that's notified when the verification server gives its final verdict on
+     * a purchase that was already granted - either provisionally (see the
+     * <code>grantBeforeServerVerification</code> verification config) or because the server
+     * was unreachable at the time of the purchase.
+     *
+     * @param serverVerificationListener the listener, or null to stop listening.
+     */
+    public void setServerVerificationListener(OnServerVerificationListener serverVerificationListener) {
+        mServerVerificationListener = serverVerificationListener;
+    }
+
+    /**
+     * Sets the executor that delivers the results of purchase verifications - both the end of a
+     * verification round (which goes on to finish the purchase or restore) and the
+     * {@link OnServerVerificationListener} calls. Defaults to the main thread.
+     *
+     * @param callbackExecutor the executor, e.g. {@link CallbackExecutors#DIRECT} to continue on
+     *                         the verification thread.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor != null ? callbackExecutor : CallbackExecutors.mainThread();
+    }
+
+    /**
+     * Sets how the purchase flow starts Google Play's buy intent. Modes that can't be used
+     * (no host activity, or an API level below 24 for {@link PurchaseLaunchMode#HEADLESS_FRAGMENT})
+     * fall back to {@link PurchaseLaunchMode#IAB_ACTIVITY}.
+     *
+     * @param purchaseLaunchMode the launch mode.
+     */
+    public void setPurchaseLaunchMode(PurchaseLaunchMode purchaseLaunchMode) {
+        mPurchaseLaunchMode = purchaseLaunchMode != null ? purchaseLaunchMode : PurchaseLaunchMode.IAB_ACTIVITY;
+    }
+
+    /**
+     * Sets the activity purchases are launched from in the
+     * {@link PurchaseLaunchMode#HOST_ACTIVITY} and {@link PurchaseLaunchMode#HEADLESS_FRAGMENT}
+     * modes. Only a weak reference is kept. In the host activity mode, the activity must pass its
+     * activity results to {@link #handleActivityResult}.
+     *
+     * @param hostActivity the activity, or null to clear it.
+     */
+    public void setPurchaseHostActivity(Activity hostActivity) {
+        mPurchaseHostActivity = hostActivity != null ? new WeakReference<Activity>(hostActivity) : null;
+    }
+
+    /**
+     * Sets a listener that's told how long each purchase took from <code>launchPurchaseFlow</code>
+     * (the tap) to starting Google Play's dialog.
+     *
+     * @param purchaseDialogListener the listener, or null to stop listening.
+     */
+    public void setOnPurchaseDialogLaunchedListener(OnPurchaseDialogLaunchedListener purchaseDialogListener) {
+        mPurchaseDialogListener = purchaseDialogListener;
+    }
+
+    /**
+     * Passes an activity result to the purchase flow. Host activities must call this from their
+     * <code>onActivityResult</code> when using {@link PurchaseLaunchMode#HOST_ACTIVITY}.
+     *
+     * @return true if the result belonged to the purchase flow.
+     */
+    public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
+        GoogleIabHelper helper = mHelper;
+        if (helper == null || !helper.handleActivityResult(requestCode, resultCode, data)) {
+            return false;
+        }
+        mWaitingServiceResponse = false;
+        return true;
+    }
+
+    /**
+     * Fetches the buy intent of a likely purchase ahead of time (e.g. when the user opens the
+     * item's page), so tapping "buy" opens the Google Play dialog sooner. The buy intent is
+     * used by the next {@link #launchPurchaseFlow} of the same item type, SKU and payload within
+     * {@link BuyIntentCache#DEFAULT_TTL_MILLIS}. Otherwise the purchase gets a new one.
+     *
+     * Starts the billing service if it isn't started, and stops it once the buy intent is
+     * fetched, like the other operations do, unless {@link #startIabServiceInBg} keeps it open.
+     * The fetched buy intent outlives the service.
+     * Async method - safe to run on ui thread.
+     *
+     * @param itemType the item type of the purchase.
+     * @param sku the SKU of the purchase.
+     * @param extraData the developer payload the purchase will be launched with.
+     */
+    public void prefetchBuyIntent(final String itemType, final String sku, final String extraData) {
+        if (mBuyIntentCache.contains(itemType, sku, extraData)) {
+            return;
+        }
+        // the listener runs while holding a lease, so the helper can't be stopped before the prefetch starts
+        startIabHelper(new OnIabSetupFinishedListener(new IabCallbacks.IabInitListener() {
+            @Override
+            public void success(boolean alreadyInBg) {
+                mHelper.prefetchBuyIntent(itemType, sku, extraData, new Runnable() {
+                    @Override
+                    public void run() {
+                        stopIabHelper(null);
+                    }
+                });
+            }
+
+            @Override
+            public void fail(String message) {
+                BillingLog.debug(TAG, "Not prefetching buy intent for {}: {}", sku, message);
+            }
+        }));
+    }
+
+    /**
+     * Returns the SKU details of the last successful fetch, in compact form, or null if no
+     * fetch succeeded yet.
+     */
+    public CompactSkuCatalog getSkuCatalog() {
+        return mSkuCatalog;
+    }
+
+    /**
+     * Verifies the purchases that were queued while the verification server was unreachable.
+     * Every purchase that gets its final verdict is removed from the queue and reported with a
+     * {@link DeferredVerificationFinishedEvent}. A purchase that can't be verified at all, or
+     * that failed {@link PendingVerificationQueue#MAX_ATTEMPTS} times, is dropped and reported
+     * with an <code>UnexpectedStoreErrorEvent</code>. Draining stops while the verification
+     * server is unavailable.
+     *
+     * Async method - safe to run on ui thread.
+     */
+    public void drainPendingVerifications() {
+        final VerificationConfig verificationConfig = mVerificationConfig;
+        if (!verificationConfig.isEnabled() || mPendingVerifications.isEmpty()
+                || !mDrainingPendingVerifications.compareAndSet(false, true)) {
+            return;
+        }
+
+        final VerificationCache verificationCache = mVerificationCache;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                try {
+                    // failed purchases go to the back of the queue, so stop once we're back at one
+                    Set<String> attempted = new HashSet<String>();
+                    List<IabPurchase> batch;
+                    drain:
+                    while (!(batch = mPendingVerifications.peekBatch(PENDING_VERIFICATIONS_BATCH_SIZE)).isEmpty()) {
+                        for (IabPurchase purchase : batch) {
+                            if (!attempted.add(purchase.getToken())) {
+                                break drain;
+                            }
+
+                            SoomlaGpVerification sv = new SoomlaGpVerification(purchase,
+                                    verificationConfig.getClientId(),
+                                    verificationConfig.getClientSecret(),
+                                    verificationConfig.getRefreshToken(),
+                                    false);
+
+                            sv.verifyPurchase();
+                            UnexpectedStoreErrorEvent.ErrorCode errorCode = purchase.getVerificationErrorCode();
+                            if (errorCode == UnexpectedStoreErrorEvent.ErrorCode.VERIFICATION_TIMEOUT) {
+                                if (SoomlaGpVerification.isServerUnavailable()) {
+                                    SoomlaUtils.LogDebug(TAG, "Verification server is still unreachable. Will try again later.");
+                                    return;
+                                }
+                                if (!mPendingVerifications.retryLater(purchase)) {
+                                    BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(errorCode));
+                                }
+                                continue;
+                            }
+
+                            mPendingVerifications.remove(purchase);
+                            if (errorCode == SoomlaGpVerification.PERMANENT_FAILURE) {
+                                // not a verdict, so the granted purchase is neither confirmed nor revoked
+                                SoomlaUtils.LogError(TAG, "Dropping purchase that can't be verified: " + purchase.getSku());
+                                BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(errorCode));
+                                continue;
+                            }
+                            verificationCache.storeVerdict(purchase);
+                            BusProvider.getInstance().post(new DeferredVerificationFinishedEvent(purchase));
+                            notifyServerVerificationFinished(purchase);
+                        }
+                    }
+                } finally {
+                    mDrainingPendingVerifications.set(false);
+                }
+            }
+        }).start();
     }
 
     /**
@@ -220,13 +442,22 @@ public class GooglePlayIabService implements IIabService {
         }
 
 
+        mPurchaseStartedAt = SystemClock.elapsedRealtime();
+        final PurchaseLaunchMode launchMode = resolvePurchaseLaunchMode();
+        // becomes the purchase's listener only once the helper accepts the launch, so a purchase
+        // that's already in progress keeps its own
+        mPendingOnPurchaseListener = purchaseListener;
+        if (launchMode != PurchaseLaunchMode.IAB_ACTIVITY) {
+            launchDirectPurchaseFlow(launchMode, itemType, sku, extraData);
+            return;
+        }
+
         try {
             final Intent intent = new Intent(SoomlaApp.getAppContext(), IabActivity.class);
             intent.putExtra(SKU, sku);
             intent.putExtra(ITEM_TYPE, itemType);
             intent.putExtra(EXTRA_DATA, extraData);
 
-            mSavedOnPurchaseListener = purchaseListener;
             if (SoomlaApp.getAppContext() instanceof Activity) {
                 Activity activity = (Activity) SoomlaApp.getAppContext();
                 activity.startActivity(intent);
@@ -238,6 +469,7 @@ public class GooglePlayIabService implements IIabService {
         } catch(Exception e){
             String msg = "(launchPurchaseFlow) Error purchasing item " + e.getMessage();
             SoomlaUtils.LogError(TAG, msg);
+            takePendingPurchaseListener();
             purchaseListener.fail(msg);
         }
 
@@ -247,33 +479,231 @@ public class GooglePlayIabService implements IIabService {
 
     /*====================   Private Utility Methods   ====================*/
 
+    private Activity getPurchaseHostActivity(boolean explicitOnly) {
+        WeakReference<Activity> hostActivity = mPurchaseHostActivity;
+        Activity activity = hostActivity != null ? hostActivity.get() : null;
+        if (activity == null && !explicitOnly && SoomlaApp.getAppContext() instanceof Activity) {
+            activity = (Activity) SoomlaApp.getAppContext();
+        }
+        return activity != null && !activity.isFinishing() ? activity : null;
+    }
+
     /**
-     * Create a new IAB helper and set it up.
+     * Returns the launch mode to use for the next purchase, falling back to
+     * {@link PurchaseLaunchMode#IAB_ACTIVITY} when the configured one can't be used.
+     */
+    private PurchaseLaunchMode resolvePurchaseLaunchMode() {
+        PurchaseLaunchMode launchMode = mPurchaseLaunchMode;
+        switch (launchMode) {
+            case HOST_ACTIVITY:
+                // the host has to pass its activity results back, so it must be set explicitly
+                if (getPurchaseHostActivity(true) == null) {
+                    SoomlaUtils.LogDebug(TAG, "No purchase host activity set. Launching the purchase with IabActivity.");
+                    return PurchaseLaunchMode.IAB_ACTIVITY;
+                }
+                return launchMode;
+
+            case HEADLESS_FRAGMENT:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N || getPurchaseHostActivity(false) == null) {
+                    SoomlaUtils.LogDebug(TAG, "Can't launch the purchase from a fragment. Launching it with IabActivity.");
+                    return PurchaseLaunchMode.IAB_ACTIVITY;
+                }
+                return launchMode;
+
+            default:
+                return PurchaseLaunchMode.IAB_ACTIVITY;
+        }
+    }
+
+    /**
+     * Launches the purchase flow right from the host activity, or from a headless fragment added
+     * to it, without going through IabActivity.
+     */
+    private void launchDirectPurchaseFlow(final PurchaseLaunchMode launchMode, final String itemType,
+                                          final String sku, final String extraData) {
+        final Activity host = getPurchaseHostActivity(launchMode == PurchaseLaunchMode.HOST_ACTIVITY);
+        if (host == null) {
+            purchaseLaunchFailed("Purchase host activity is gone.", takePendingPurchaseListener());
+            return;
+        }
+
+        host.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (launchMode == PurchaseLaunchMode.HOST_ACTIVITY) {
+                    launchPurchaseFlowFrom(host, null, launchMode, itemType, sku, extraData);
+                    return;
+                }
+
+                try {
+                    Bundle args = new Bundle();
+                    args.putString(SKU, sku);
+                    args.putString(ITEM_TYPE, itemType);
+                    args.putString(EXTRA_DATA, extraData);
+                    IabFragment fragment = new IabFragment();
+                    fragment.setArguments(args);
+                    host.getFragmentManager().beginTransaction()
+                            .add(fragment, IabFragment.FRAGMENT_TAG)
+                            .commitAllowingStateLoss();
+                } catch (Exception e) {
+                    purchaseLaunchFailed("Error purchasing item " + e.getMessage(), takePendingPurchaseListener());
+                }
+            }
+        });
+    }
+
+    /**
+     * Launches the purchase flow from the host activity or from a headless fragment.
+     * Must be called on the main thread.
      *
-     * @param onIabSetupFinishedListener is a callback that lets users to add their own implementation for when the Iab is started
+     * @return true if Google Play's dialog was started and the purchase waits for its result.
      */
-    private synchronized void startIabHelper(OnIabSetupFinishedListener onIabSetupFinishedListener) {
-        if (isIabServiceInitialized())
-        {
-            SoomlaUtils.LogDebug(TAG, "The helper is started. Just running the post start function.");
+    private boolean launchPurchaseFlowFrom(Activity host, Fragment fragment, PurchaseLaunchMode launchMode,
+                                           String itemType, String sku, String extraData) {
+        IabCallbacks.OnPurchaseListener purchaseListener = takePendingPurchaseListener();
+        GoogleIabHelper helper = mHelper;
+        if (helper == null) {
+            purchaseLaunchFailed("Billing service isn't started.", purchaseListener);
+            return false;
+        }
 
-            if (onIabSetupFinishedListener != null && onIabSetupFinishedListener.getIabInitListener() != null) {
-                onIabSetupFinishedListener.getIabInitListener().success(true);
+        OnBuyIntentLaunchedListener onBuyIntentLaunchedListener = new OnBuyIntentLaunchedListener();
+        try {
+            OnIabPurchaseFinishedListener onIabPurchaseFinishedListener = new OnIabPurchaseFinishedListener();
+            if (fragment != null) {
+                helper.launchPurchaseFlow(fragment, itemType, sku, onIabPurchaseFinishedListener, extraData,
+                        onBuyIntentLaunchedListener);
+            } else {
+                helper.launchPurchaseFlow(host, itemType, sku, onIabPurchaseFinishedListener, extraData,
+                        onBuyIntentLaunchedListener);
             }
-            return;
+        } catch (IllegalStateException e) {
+            // another purchase is in progress, it keeps its listener and reports for itself
+            purchaseLaunchFailed("Can't purchase " + sku + ": " + e.getMessage(), purchaseListener);
+            return false;
+        } catch (Exception e) {
+            mWaitingServiceResponse = false;
+            purchaseLaunchFailed("Error purchasing item " + e.getMessage(), purchaseListener);
+            return false;
         }
 
-        SoomlaUtils.LogDebug(TAG, "Creating IAB helper.");
-        mHelper = new GoogleIabHelper();
+        // the helper accepted the launch. It posts its results to the main thread, so they can't
+        // arrive before the listener is in place
+        mSavedOnPurchaseListener = purchaseListener;
+
+        // otherwise the helper already reported the failure
+        if (onBuyIntentLaunchedListener.mLaunched) {
+            mWaitingServiceResponse = true;
+            reportPurchaseDialogLaunched(sku, launchMode, onBuyIntentLaunchedListener.mLaunchedAt);
+        }
+        return onBuyIntentLaunchedListener.mLaunched;
+    }
+
+    /**
+     * Returns the listener of the purchase being launched, and clears it.
+     */
+    private IabCallbacks.OnPurchaseListener takePendingPurchaseListener() {
+        IabCallbacks.OnPurchaseListener purchaseListener = mPendingOnPurchaseListener;
+        mPendingOnPurchaseListener = null;
+        return purchaseListener;
+    }
+
+    /**
+     * Fails a purchase that wasn't launched.
+     */
+    private void purchaseLaunchFailed(String msg, IabCallbacks.OnPurchaseListener purchaseListener) {
+        SoomlaUtils.LogError(TAG, msg);
+        if (purchaseListener != null) {
+            purchaseListener.fail(msg);
+        }
+    }
+
+    private void reportPurchaseDialogLaunched(String sku, PurchaseLaunchMode launchMode, long launchedAt) {
+        long tapToDialogMillis = launchedAt - mPurchaseStartedAt;
+        SoomlaUtils.LogDebug(TAG, "Purchase dialog for " + sku + " launched " + tapToDialogMillis
+                + "ms after the purchase started (mode: " + launchMode + ").");
+        OnPurchaseDialogLaunchedListener purchaseDialogListener = mPurchaseDialogListener;
+        if (purchaseDialogListener != null) {
+            purchaseDialogListener.onPurchaseDialogLaunched(sku, launchMode, tapToDialogMillis);
+        }
+    }
+
+    /**
+     * Create a new IAB helper and set it up.
+     *
+     * @param onIabSetupFinishedListener is a callback that lets users to add their own implementation for when the Iab is started
+     */
+    private void startIabHelper(final OnIabSetupFinishedListener onIabSetupFinishedListener) {
+        final IabCallbacks.IabInitListener iabInitListener =
+                onIabSetupFinishedListener != null ? onIabSetupFinishedListener.getIabInitListener() : null;
+
+        while (true) {
+            switch (mConnectionState.getState()) {
+                case READY:
+                    // the lease keeps the helper from being stopped until the listener started its operation
+                    if (mConnectionState.acquire()) {
+                        SoomlaUtils.LogDebug(TAG, "The helper is started. Just running the post start function.");
+                        try {
+                            if (iabInitListener != null) {
+                                iabInitListener.success(true);
+                            }
+                        } finally {
+                            mConnectionState.release();
+                        }
+                        return;
+                    }
+                    // it's being stopped, look again
+                    break;
+
+                case BINDING:
+                    SoomlaUtils.LogDebug(TAG, "The helper is starting. Waiting for it to finish.");
+                    mConnectionState.whenReady(new IabConnectionStateMachine.Waiter() {
+                        @Override
+                        public void onReady() {
+                            // it may be stopped again before this runs
+                            startIabHelper(onIabSetupFinishedListener);
+                        }
+
+                        @Override
+                        public void onFailed(String message) {
+                            if (iabInitListener != null) {
+                                iabInitListener.fail(message);
+                            }
+                        }
+                    });
+                    return;
+
+                case DISCONNECTED:
+                    if (mConnectionState.transition(IabConnectionStateMachine.State.DISCONNECTED,
+                            IabConnectionStateMachine.State.BINDING)) {
+                        SoomlaUtils.LogDebug(TAG, "Creating IAB helper.");
+                        mHelper = new GoogleIabHelper();
+                        mHelper.setBuyIntentCache(mBuyIntentCache);
+
+                        SoomlaUtils.LogDebug(TAG, "IAB helper Starting setup.");
+                        mHelper.startSetup(onIabSetupFinishedListener);
+                        return;
+                    }
+                    // another caller started (or stopped) it first, look again
+                    break;
 
-        SoomlaUtils.LogDebug(TAG, "IAB helper Starting setup.");
-        mHelper.startSetup(onIabSetupFinishedListener);
+                case DISPOSING:
+                    // look again once it's disposed, without holding this thread
+                    mConnectionState.whenNotDisposing(new Runnable() {
+                        @Override
+                        public void run() {
+                            startIabHelper(onIabSetupFinishedListener);
+                        }
+                    });
+                    return;
+            }
+        }
     }
 
     /**
      * Dispose of the helper to prevent memory leaks
      */
-    private synchronized void stopIabHelper(IabCallbacks.IabInitListener iabInitListener) {
+    private void stopIabHelper(IabCallbacks.IabInitListener iabInitListener) {
         if (keepIabServiceOpen) {
             String msg = "Not stopping Google Service b/c the user run 'startIabServiceInBg'. Keeping it open.";
             if (iabInitListener != null) {
@@ -284,7 +714,24 @@ public class GooglePlayIabService implements IIabService {
             return;
         }
 
-        if (mHelper == null) {
+        if (mConnectionState.getState() == IabConnectionStateMachine.State.BINDING) {
+            mPendingStop.set(true);
+            // the setup may have finished before the flag was set, and nobody will look at it
+            if (mConnectionState.getState() != IabConnectionStateMachine.State.BINDING
+                    && mPendingStop.compareAndSet(true, false)) {
+                stopIabHelper(iabInitListener);
+                return;
+            }
+            String msg = "Google Service is being set up. Will be stopped once the setup is finished.";
+            if (iabInitListener != null) {
+                iabInitListener.fail(msg);
+            } else {
+                SoomlaUtils.LogDebug(TAG, msg);
+            }
+            return;
+        }
+
+        if (mConnectionState.getState() != IabConnectionStateMachine.State.READY) {
             String msg = "Tried to stop Google Service when it was null.";
             if (iabInitListener != null) {
                 iabInitListener.fail(msg);
@@ -294,11 +741,29 @@ public class GooglePlayIabService implements IIabService {
             return;
         }
 
-        if (!mHelper.isAsyncInProgress())
+        // fails while a caller holds a lease, and no caller can take one once it's DISPOSING
+        boolean stopped = false;
+        if (mConnectionState.transition(IabConnectionStateMachine.State.READY,
+                IabConnectionStateMachine.State.DISPOSING))
         {
-            SoomlaUtils.LogDebug(TAG, "Stopping Google Service");
-            mHelper.dispose();
-            mHelper = null;
+            GoogleIabHelper helper = mHelper;
+            // operations are started under a lease, so the ones started before the transition are seen here
+            if (helper != null && helper.isAsyncInProgress()) {
+                mConnectionState.transition(IabConnectionStateMachine.State.DISPOSING,
+                        IabConnectionStateMachine.State.READY);
+            } else {
+                SoomlaUtils.LogDebug(TAG, "Stopping Google Service");
+                mHelper = null;
+                if (helper != null) {
+                    helper.dispose();
+                }
+                mConnectionState.transition(IabConnectionStateMachine.State.DISPOSING,
+                        IabConnectionStateMachine.State.DISCONNECTED);
+                stopped = true;
+            }
+        }
+
+        if (stopped) {
             if (iabInitListener != null) {
                 iabInitListener.success(true);
             }
@@ -314,33 +779,58 @@ public class GooglePlayIabService implements IIabService {
         }
     }
 
-    private static boolean isVerifyPurchasesEnabled() {
-        return !TextUtils.isEmpty(KeyValueStorage.getValue(VERIFY_PURCHASES_KEY));
+    private boolean isVerifyPurchasesEnabled() {
+        return mVerificationConfig.isEnabled();
     }
 
     /**
      * Async method - safe to run on ui thread.
-     * Verifies purchases using the soomla server.
+     * Verifies purchases using the soomla server. Purchases the server couldn't be reached for
+     * are queued for a later verdict only if they're granted anyway.
+     *
+     * @param granted true if the purchases were already granted, before verification.
      */
-    private void verifyPurchases(final List<IabPurchase> purchases, final VerifyPurchasesFinishedListener listener) {
+    private void verifyPurchases(final List<IabPurchase> purchases, final boolean granted,
+                                 final VerifyPurchasesFinishedListener listener) {
 
+        final VerificationConfig verificationConfig = mVerificationConfig;
+        final VerificationCache verificationCache = mVerificationCache;
         new Thread(new Runnable() {
             @Override
             public void run() {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
+                boolean serverReachable = false;
                 for (IabPurchase purchase : purchases) {
 
+                    if (verificationCache.applyCachedVerdict(purchase)) {
+                        continue;
+                    }
+
                     SoomlaGpVerification sv = new SoomlaGpVerification(purchase,
-                            KeyValueStorage.getValue(VERIFY_CLIENT_ID_KEY),
-                            KeyValueStorage.getValue(VERIFY_CLIENT_SECRET_KEY),
-                            KeyValueStorage.getValue(VERIFY_REFRESH_TOKEN_KEY),
-                            Boolean.parseBoolean(KeyValueStorage.getValue(VERIFY_ON_SERVER_FAILURE)));
+                            verificationConfig.getClientId(),
+                            verificationConfig.getClientSecret(),
+                            verificationConfig.getRefreshToken(),
+                            verificationConfig.isVerifyOnServerFailure());
 
                     sv.verifyPurchase();
+                    if (purchase.getVerificationErrorCode() == UnexpectedStoreErrorEvent.ErrorCode.VERIFICATION_TIMEOUT) {
+                        // only a granted purchase has a verdict to catch up on. A denied one is
+                        // still owned, so it's verified again on the next restore
+                        if (granted || purchase.isServerVerified()) {
+                            mPendingVerifications.enqueue(purchase);
+                        }
+                    } else {
+                        serverReachable = true;
+                        verificationCache.storeVerdict(purchase);
+                    }
+                }
+
+                if (serverReachable) {
+                    drainPendingVerifications();
                 }
 
-                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                mCallbackExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
                         listener.finished();
@@ -351,6 +841,84 @@ public class GooglePlayIabService implements IIabService {
         }).start();
     }
 
+    /**
+     * Reports the final server verdict of an already granted purchase to the
+     * {@link OnServerVerificationListener}, through the callback executor.
+     */
+    private void notifyServerVerificationFinished(final IabPurchase purchase) {
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                OnServerVerificationListener listener = mServerVerificationListener;
+                if (listener == null) {
+                    return;
+                }
+
+                if (purchase.isServerVerified()) {
+                    listener.confirmed(purchase);
+                } else {
+                    listener.revoked(purchase);
+                }
+            }
+        });
+    }
+
+    /**
+     * Callback for the final server verdict of purchases that were granted before it arrived.
+     */
+    public interface OnServerVerificationListener {
+        /**
+         * Called when the server verified a purchase that was already granted.
+         *
+         * @param purchase the verified purchase.
+         */
+        public void confirmed(IabPurchase purchase);
+
+        /**
+         * Called when the server rejected a purchase that was already granted.
+         * The game should take back whatever it gave for this purchase.
+         *
+         * @param purchase the rejected purchase.
+         */
+        public void revoked(IabPurchase purchase);
+    }
+
+    /**
+     * How the purchase flow starts Google Play's buy intent.
+     */
+    public enum PurchaseLaunchMode {
+        /**
+         * Starts it from IabActivity, a transparent activity that gets the result.
+         */
+        IAB_ACTIVITY,
+
+        /**
+         * Starts it from the activity set with {@link #setPurchaseHostActivity}, which passes
+         * the result to {@link #handleActivityResult}.
+         */
+        HOST_ACTIVITY,
+
+        /**
+         * Starts it from a headless fragment added to the host activity, which gets the result.
+         * Needs API 24.
+         */
+        HEADLESS_FRAGMENT
+    }
+
+    /**
+     * Callback for the timing of purchase flows.
+     */
+    public interface OnPurchaseDialogLaunchedListener {
+        /**
+         * Called when Google Play's purchase dialog was started.
+         *
+         * @param sku the SKU being purchased.
+         * @param launchMode the launch mode that started the dialog.
+         * @param tapToDialogMillis the time from <code>launchPurchaseFlow</code> to starting the dialog.
+         */
+        public void onPurchaseDialogLaunched(String sku, PurchaseLaunchMode launchMode, long tapToDialogMillis);
+    }
+
     /**
      * Callback for verify purchases.
      */
@@ -389,7 +957,7 @@ public class GooglePlayIabService implements IIabService {
 
                 if (isVerifyPurchasesEnabled()) {
                     mRestorePurchasesListener.verificationStarted(purchases);
-                    verifyPurchases(purchases, new VerifyPurchasesFinishedListener() {
+                    verifyPurchases(purchases, false, new VerifyPurchasesFinishedListener() {
                         @Override
                         public void finished() {
                             restorePurchasessFinished(purchases);
@@ -407,9 +975,27 @@ public class GooglePlayIabService implements IIabService {
 
         }
 
-        private void restorePurchasessFinished(List<IabPurchase> purchases) {
-            mRestorePurchasesListener.success(purchases);
-            stopIabHelper(null);
+        private void restorePurchasessFinished(final List<IabPurchase> purchases) {
+            Set<String> consumableSkus = mRestoreConsumableSkus;
+            GoogleIabHelper helper = mHelper;
+            if (consumableSkus == null || consumableSkus.isEmpty() || helper == null) {
+                mRestorePurchasesListener.success(purchases);
+                stopIabHelper(null);
+                return;
+            }
+
+            // the consumables are granted first, and consumed together once the grants are done
+            helper.deferRestoredConsumes(purchases, consumableSkus);
+            try {
+                mRestorePurchasesListener.success(purchases);
+            } finally {
+                helper.consumeRestoredAsync(new GoogleIabHelper.OnConsumeMultiFinishedListener() {
+                    @Override
+                    public void onConsumeMultiFinished(List<IabPurchase> consumed, List<IabResult> results) {
+                        stopIabHelper(null);
+                    }
+                }, mCallbackExecutor);
+            }
         }
     }
 
@@ -433,15 +1019,19 @@ public class GooglePlayIabService implements IIabService {
                 // @lassic (May 1st): actually, here (query finished) it only makes sense to get the details
                 // of the SKUs we already queried for
                 List<String> skuList = inventory.getAllQueriedSkus(false);
-                List<IabSkuDetails> skuDetails = new ArrayList<IabSkuDetails>();
+                CompactSkuCatalog.Builder builder = new CompactSkuCatalog.Builder();
                 for (String sku : skuList) {
                     IabSkuDetails skuDetail = inventory.getSkuDetails(sku);
                     if (skuDetail != null) {
-                        skuDetails.add(skuDetail);
+                        builder.add(skuDetail);
                     }
                 }
 
-                this.mFetchSkusDetailsListener.success(skuDetails);
+                // keep only the compact copy, so the inventory and its raw JSON can be collected.
+                // the store gets views over the catalog, not another copy of the details
+                CompactSkuCatalog catalog = builder.build();
+                mSkuCatalog = catalog;
+                this.mFetchSkusDetailsListener.success(catalog.getAllSkuDetails());
             } else {
                 SoomlaUtils.LogError(TAG, "Wither mFetchSkusDetailsListener==null OR Fetching details error: " + result.getMessage());
                 if (this.mFetchSkusDetailsListener != null) this.mFetchSkusDetailsListener.fail(result.getMessage());
@@ -471,10 +1061,36 @@ public class GooglePlayIabService implements IIabService {
 
             SoomlaUtils.LogDebug(TAG, "IAB helper Setup finished.");
             if (result.isFailure()) {
+                // drop the failed helper, so the next start sets up a new one
+                GoogleIabHelper helper = mHelper;
+                mHelper = null;
+                if (helper != null) {
+                    helper.dispose();
+                }
+                mConnectionState.transition(IabConnectionStateMachine.State.BINDING,
+                        IabConnectionStateMachine.State.DISCONNECTED, result.getMessage());
+                // there's nothing left to stop
+                mPendingStop.set(false);
                 if (mIabInitListener != null) mIabInitListener.fail(result.getMessage());
                 return;
             }
-            if (mIabInitListener != null) mIabInitListener.success(false);
+            mConnectionState.transition(IabConnectionStateMachine.State.BINDING,
+                    IabConnectionStateMachine.State.READY);
+            if (!mConnectionState.acquire()) {
+                // stopped right after the setup, start it again for this listener
+                startIabHelper(this);
+                return;
+            }
+            try {
+                if (mIabInitListener != null) mIabInitListener.success(false);
+            } finally {
+                mConnectionState.release();
+            }
+
+            // a stop was asked for during the setup
+            if (mPendingStop.compareAndSet(true, false)) {
+                stopIabHelper(null);
+            }
         }
     }
 
@@ -497,10 +1113,37 @@ public class GooglePlayIabService implements IIabService {
             GooglePlayIabService.getInstance().mWaitingServiceResponse = false;
 
             if (result.getResponse() == IabResult.BILLING_RESPONSE_RESULT_OK) {
-                if (isVerifyPurchasesEnabled()) {
+                VerificationConfig verificationConfig = GooglePlayIabService.getInstance().mVerificationConfig;
+                if (verificationConfig.isEnabled() && verificationConfig.isGrantBeforeServerVerification()) {
+                    // the signature was already verified locally, so grant now and let the server confirm later
+                    final GooglePlayIabService service = GooglePlayIabService.getInstance();
+                    service.mSavedOnPurchaseListener.verificationStarted(Arrays.asList(purchase));
+                    // the granted purchase is handed over as is, the verdict goes on a copy of it
+                    final IabPurchase verifiedPurchase = copyPurchase(purchase);
+                    purchase.setServerVerified(true);
+                    purchaseFinishedSuccessfully(purchase);
+                    service.verifyPurchases(Arrays.asList(verifiedPurchase), true, new VerifyPurchasesFinishedListener() {
+                        @Override
+                        public void finished() {
+                            if (verifiedPurchase.getVerificationErrorCode() == UnexpectedStoreErrorEvent.ErrorCode.VERIFICATION_TIMEOUT) {
+                                SoomlaUtils.LogDebug(TAG, "Provisionally granted purchase will be verified once the server is reachable: "
+                                        + verifiedPurchase.getSku());
+                                return;
+                            }
+                            if (verifiedPurchase.getVerificationErrorCode() == SoomlaGpVerification.PERMANENT_FAILURE) {
+                                SoomlaUtils.LogError(TAG, "Provisionally granted purchase can't be verified: "
+                                        + verifiedPurchase.getSku());
+                                BusProvider.getInstance().post(new UnexpectedStoreErrorEvent(SoomlaGpVerification.PERMANENT_FAILURE));
+                                return;
+                            }
+                            BusProvider.getInstance().post(new DeferredVerificationFinishedEvent(verifiedPurchase));
+                            service.notifyServerVerificationFinished(verifiedPurchase);
+                        }
+                    });
+                } else if (verificationConfig.isEnabled()) {
                     List<IabPurchase> purchases = Arrays.asList(purchase);
                     GooglePlayIabService.getInstance().mSavedOnPurchaseListener.verificationStarted(purchases);
-                    GooglePlayIabService.getInstance().verifyPurchases(purchases, new VerifyPurchasesFinishedListener() {
+                    GooglePlayIabService.getInstance().verifyPurchases(purchases, false, new VerifyPurchasesFinishedListener() {
                         @Override
                         public void finished() {
                             purchaseFinishedSuccessfully(purchase);
@@ -530,6 +1173,20 @@ public class GooglePlayIabService implements IIabService {
             purchaseFinished();
         }
 
+        private static IabPurchase copyPurchase(IabPurchase purchase) {
+            if (purchase.getOriginalJson() != null) {
+                try {
+                    return ParsedIabPurchase.fromJson(purchase.getItemType(), purchase.getOriginalJson(), purchase.getSignature());
+                } catch (JSONException e) {
+                    SoomlaUtils.LogDebug(TAG, "Copying purchase fields, its data can't be parsed: " + e.getMessage());
+                }
+            }
+            IabPurchase copy = new IabPurchase(purchase.getItemType(), purchase.getSku(), purchase.getToken(),
+                    purchase.getOrderId(), purchase.getPurchaseState(), purchase.getUserId());
+            copy.setDeveloperPayload(purchase.getDeveloperPayload());
+            return copy;
+        }
+
         private void purchaseFinishedSuccessfully(IabPurchase purchase) {
             IabCallbacks.OnPurchaseListener onPurchaseListener = GooglePlayIabService.getInstance().mSavedOnPurchaseListener;
             if (onPurchaseListener != null) {
@@ -544,6 +1201,20 @@ public class GooglePlayIabService implements IIabService {
         }
     }
 
+    /**
+     * Records whether the helper started the buy intent of a launch, and when.
+     */
+    private static class OnBuyIntentLaunchedListener implements GoogleIabHelper.OnBuyIntentLaunchedListener {
+        private boolean mLaunched = false;
+        private long mLaunchedAt = 0;
+
+        @Override
+        public void onBuyIntentLaunched(String sku, long launchedAt) {
+            mLaunched = true;
+            mLaunchedAt = launchedAt;
+        }
+    }
+
 
     /**
      * Android In-App Billing v3 requires an activity to receive the result of the billing process.
@@ -562,26 +1233,33 @@ public class GooglePlayIabService implements IIabService {
             String itemType = intent.getStringExtra(ITEM_TYPE);
             String payload = intent.getStringExtra(EXTRA_DATA);
 
+            IabCallbacks.OnPurchaseListener purchaseListener = GooglePlayIabService.getInstance().takePendingPurchaseListener();
             try {
                 OnIabPurchaseFinishedListener onIabPurchaseFinishedListener = new OnIabPurchaseFinishedListener();
-                GooglePlayIabService.getInstance().mHelper.launchPurchaseFlow(this, itemType, productId, onIabPurchaseFinishedListener, payload);
+                OnBuyIntentLaunchedListener onBuyIntentLaunchedListener = new OnBuyIntentLaunchedListener();
+                GoogleIabHelper helper = GooglePlayIabService.getInstance().mHelper;
+                helper.launchPurchaseFlow(this, itemType, productId, onIabPurchaseFinishedListener, payload,
+                        onBuyIntentLaunchedListener);
+                // the launch was accepted, the results are posted to the main thread after this
+                GooglePlayIabService.getInstance().mSavedOnPurchaseListener = purchaseListener;
                 GooglePlayIabService.getInstance().mWaitingServiceResponse = true;
+                if (onBuyIntentLaunchedListener.mLaunched) {
+                    GooglePlayIabService.getInstance().reportPurchaseDialogLaunched(productId,
+                            PurchaseLaunchMode.IAB_ACTIVITY, onBuyIntentLaunchedListener.mLaunchedAt);
+                }
             } catch (IllegalStateException e) {
+                // another purchase is in progress, it keeps its listener and reports for itself
                 mInProgressDestroy = true;
                 finish();
+                GooglePlayIabService.getInstance().purchaseLaunchFailed("Can't purchase " + productId
+                        + ": " + e.getMessage(), purchaseListener);
             } catch (Exception e) {
                 SoomlaUtils.LogDebug(TAG, "MSG: " + e.getMessage());
                 finish();
 
-                String msg = "Error purchasing item " + e.getMessage();
-                SoomlaUtils.LogError(TAG, msg);
                 GooglePlayIabService.getInstance().mWaitingServiceResponse = false;
-
-                IabCallbacks.OnPurchaseListener onPurchaseListener = GooglePlayIabService.getInstance().mSavedOnPurchaseListener;
-                if (onPurchaseListener != null) {
-                    onPurchaseListener.fail(msg);
-                    GooglePlayIabService.getInstance().mSavedOnPurchaseListener = null;
-                }
+                GooglePlayIabService.getInstance().purchaseLaunchFailed("Error purchasing item " + e.getMessage(),
+                        purchaseListener);
             }
         }
 
@@ -656,10 +1334,60 @@ public class GooglePlayIabService implements IIabService {
         }
     }
 
-    private void checkStringConfigItem(Map<String, Object> config, String key) {
-        Object strToCheck = config.get(key);
-        if (strToCheck == null || !(strToCheck instanceof String) || TextUtils.isEmpty((String) strToCheck)) {
-            throw new IllegalArgumentException("Please, provide value for " + key);
+    /**
+     * Headless fragment that starts Google Play's buy intent from the host activity and receives
+     * its result, so purchases don't need IabActivity (see {@link PurchaseLaunchMode#HEADLESS_FRAGMENT}).
+     * Needs API 24. Please do NOT add it on your own.
+     */
+    public static class IabFragment extends Fragment {
+        static final String FRAGMENT_TAG = "soomla.IabFragment";
+
+        private boolean mWaitingResult = false;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            // keep waiting for the result across configuration changes
+            setRetainInstance(true);
+
+            Bundle args = getArguments();
+            if (savedInstanceState == null && args != null) {
+                mWaitingResult = GooglePlayIabService.getInstance().launchPurchaseFlowFrom(getActivity(), this,
+                        PurchaseLaunchMode.HEADLESS_FRAGMENT, args.getString(ITEM_TYPE), args.getString(SKU),
+                        args.getString(EXTRA_DATA));
+            }
+            if (!mWaitingResult) {
+                remove();
+            }
+        }
+
+        @Override
+        public void onActivityResult(int requestCode, int resultCode, Intent data) {
+            SoomlaUtils.LogDebug(TAG, "IabFragment onActivityResult");
+            mWaitingResult = false;
+            if (!GooglePlayIabService.getInstance().handleActivityResult(requestCode, resultCode, data)) {
+                super.onActivityResult(requestCode, resultCode, data);
+            }
+            remove();
+        }
+
+        @Override
+        public void onDestroy() {
+            if (mWaitingResult && GooglePlayIabService.getInstance().mWaitingServiceResponse) {
+                SoomlaUtils.LogError(TAG, "IabFragment is destroyed during purchase.");
+                mWaitingResult = false;
+
+                // we're letting the helper take care of closing so there won't be any async process stuck in it.
+                GooglePlayIabService.getInstance().handleActivityResult(10001, Activity.RESULT_CANCELED, null);
+            }
+            super.onDestroy();
+        }
+
+        private void remove() {
+            Activity activity = getActivity();
+            if (activity != null && isAdded()) {
+                activity.getFragmentManager().beginTransaction().remove(this).commitAllowingStateLoss();
+            }
         }
     }
 
@@ -670,9 +1398,24 @@ public class GooglePlayIabService implements IIabService {
 
     /* Private Members */
     private static final String TAG = "SOOMLA GooglePlayIabService";
-    private GoogleIabHelper mHelper;
-    private boolean keepIabServiceOpen = false;
-    private boolean mWaitingServiceResponse = false;
+    private volatile GoogleIabHelper mHelper;
+    private final IabConnectionStateMachine mConnectionState = new IabConnectionStateMachine();
+    private final AtomicBoolean mPendingStop = new AtomicBoolean(false);
+    private volatile boolean keepIabServiceOpen = false;
+    private volatile boolean mWaitingServiceResponse = false;
+    private VerificationCache mVerificationCache = new VerificationCache(
+            VerificationCache.DEFAULT_VERIFIED_TTL, VerificationCache.DEFAULT_FAILED_TTL);
+    private final PendingVerificationQueue mPendingVerifications = new PendingVerificationQueue();
+    private final AtomicBoolean mDrainingPendingVerifications = new AtomicBoolean(false);
+    private volatile VerificationConfig mVerificationConfig = VerificationConfig.DISABLED;
+    private OnServerVerificationListener mServerVerificationListener = null;
+    private volatile Executor mCallbackExecutor = CallbackExecutors.mainThread();
+    private volatile Set<String> mRestoreConsumableSkus = null;
+    private volatile CompactSkuCatalog mSkuCatalog = null;
+    private final BuyIntentCache mBuyIntentCache =
+            new BuyIntentCache(BuyIntentCache.DEFAULT_TTL_MILLIS, BuyIntentCache.DEFAULT_MAX_ENTRIES);
+
+    private static final int PENDING_VERIFICATIONS_BATCH_SIZE = 10;
 
     public static final String PUBLICKEY_KEY = "PO#SU#SO#GU";
 
@@ -683,10 +1426,18 @@ public class GooglePlayIabService implements IIabService {
     public static final String VERIFY_CLIENT_SECRET_KEY = "soomla.verification.clientSecret";
     public static final String VERIFY_ACCESS_TOKEN_KEY = "soomla.verification.accessToken";
 
+    // set while the verification settings may be in KeyValueStorage
+    private static final String VERIFY_CONFIGURED_KEY = "soomla.verification.configured";
+
     private static final String SKU = "ID#sku";
     private static final String ITEM_TYPE = "ID#itemType";
     private static final String EXTRA_DATA = "ID#extraData";
     private IabCallbacks.OnPurchaseListener mSavedOnPurchaseListener = null;
+    private IabCallbacks.OnPurchaseListener mPendingOnPurchaseListener = null;
+    private volatile PurchaseLaunchMode mPurchaseLaunchMode = PurchaseLaunchMode.IAB_ACTIVITY;
+    private volatile WeakReference<Activity> mPurchaseHostActivity = null;
+    private volatile OnPurchaseDialogLaunchedListener mPurchaseDialogListener = null;
+    private volatile long mPurchaseStartedAt = 0;
 
     /**
      * When set to true, this removes the need to verify purchases when there's no signature.
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Handle for canceling an async <code>GoogleIabHelper</code> operation.
+ *
+ * Canceling stops waiting for the billing call in flight and skips the ones that didn't start
+ * yet. The operation then fails with <code>GoogleIabHelper.IABHELPER_CANCELED</code>.
+ */
+public class IabCancellationSignal {
+
+    /**
+     * Cancels the operation. Does nothing if it's already canceled or finished.
+     */
+    public void cancel() {
+        List<Future<?>> currentCalls;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            currentCalls = new ArrayList<Future<?>>(mCurrentCalls);
+        }
+
+        for (Future<?> currentCall : currentCalls) {
+            currentCall.cancel(true);
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Adds a billing call in flight, so {@link #cancel()} can stop waiting for it. An operation
+     * may run several calls at once (e.g. consuming purchases in parallel).
+     * A call that's added after the signal was canceled is canceled right away.
+     *
+     * @param call the billing call in flight.
+     */
+    synchronized void addCall(Future<?> call) {
+        if (mCanceled) {
+            call.cancel(true);
+            return;
+        }
+        mCurrentCalls.add(call);
+    }
+
+    /**
+     * Removes a billing call that's done.
+     *
+     * @param call the billing call that was added with {@link #addCall(Future)}.
+     */
+    synchronized void removeCall(Future<?> call) {
+        mCurrentCalls.remove(call);
+    }
+
+
+    /** Private Members **/
+
+    private boolean mCanceled = false;
+    private final Set<Future<?>> mCurrentCalls = new HashSet<Future<?>>();
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free state of the connection to Google Play billing:
+ * DISCONNECTED -> BINDING -> READY -> DISPOSING -> DISCONNECTED.
+ *
+ * Transitions are compare-and-set, so exactly one of several racing callers wins each of them.
+ * Callers that need the connection while it's being set up queue a {@link Waiter}, which is
+ * notified once the connection is ready or failed. Callers that find it being torn down queue a
+ * <code>Runnable</code>, which runs once the teardown is over.
+ *
+ * While READY, callers using the connection hold a lease ({@link #acquire}), and the
+ * connection can't move to DISPOSING until every lease is released. The state and the lease
+ * count live in a single atomic integer, so acquiring and disposing can't interleave.
+ */
+public class IabConnectionStateMachine {
+
+    public enum State {
+        DISCONNECTED,
+        BINDING,
+        READY,
+        DISPOSING
+    }
+
+    /**
+     * Waits for the connection to be set up.
+     */
+    public interface Waiter {
+        void onReady();
+
+        void onFailed(String message);
+    }
+
+    public State getState() {
+        return stateOf(mCtl.get());
+    }
+
+    /**
+     * Returns the number of leases held on the connection.
+     */
+    public int getLeaseCount() {
+        return leasesOf(mCtl.get());
+    }
+
+    /**
+     * Moves from one state to another, if the machine is still in the <code>from</code> state.
+     * Moving from READY to DISPOSING fails while leases are held.
+     * Moving to READY notifies the waiters of their success, moving from BINDING to
+     * DISCONNECTED notifies them of the failure. Moving out of DISPOSING runs the callbacks
+     * queued with {@link #whenNotDisposing}.
+     *
+     * @param from the expected current state.
+     * @param to the new state.
+     * @param message the failure message for the waiters, when the setup failed.
+     * @return true if this call made the transition.
+     */
+    public boolean transition(State from, State to, String message) {
+        while (true) {
+            int ctl = mCtl.get();
+            if (stateOf(ctl) != from || (from == State.READY && leasesOf(ctl) > 0)) {
+                return false;
+            }
+            if (mCtl.compareAndSet(ctl, ctlOf(to, leasesOf(ctl)))) {
+                break;
+            }
+        }
+
+        if (to == State.READY || (from == State.BINDING && to == State.DISCONNECTED)) {
+            notifyWaiters(message);
+        }
+        if (from == State.DISPOSING) {
+            runDisposalCallbacks();
+        }
+        return true;
+    }
+
+    public boolean transition(State from, State to) {
+        return transition(from, to, null);
+    }
+
+    /**
+     * Takes a lease on the connection, if it's READY. The connection stays READY until the
+     * lease is released with {@link #release}.
+     *
+     * @return true if the lease was taken.
+     */
+    public boolean acquire() {
+        while (true) {
+            int ctl = mCtl.get();
+            if (stateOf(ctl) != State.READY) {
+                return false;
+            }
+            if (mCtl.compareAndSet(ctl, ctl + LEASE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a lease taken with {@link #acquire}.
+     */
+    public void release() {
+        while (true) {
+            int ctl = mCtl.get();
+            if (leasesOf(ctl) == 0) {
+                throw new IllegalStateException("No lease to release.");
+            }
+            if (mCtl.compareAndSet(ctl, ctl - LEASE)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notifies the waiter once the setup in progress finishes, or right away if the
+     * connection is ready. Meant to be called while the machine is BINDING.
+     *
+     * @param waiter the waiter to notify.
+     */
+    public void whenReady(Waiter waiter) {
+        if (getState() == State.READY) {
+            waiter.onReady();
+            return;
+        }
+
+        mWaiters.add(waiter);
+        // the setup may have finished between the check and the add, and nobody will drain it
+        State state = getState();
+        if (state != State.BINDING && mWaiters.remove(waiter)) {
+            if (state == State.READY) {
+                waiter.onReady();
+            } else {
+                waiter.onFailed("Google Play billing setup didn't finish.");
+            }
+        }
+    }
+
+    /**
+     * Runs the callback once the machine leaves DISPOSING, or right away if it isn't
+     * DISPOSING. Meant for callers that found the connection being torn down and want to look
+     * again once it's over, without spinning.
+     *
+     * @param callback the callback to run.
+     */
+    public void whenNotDisposing(Runnable callback) {
+        if (getState() != State.DISPOSING) {
+            callback.run();
+            return;
+        }
+
+        mDisposalCallbacks.add(callback);
+        // the teardown may have finished between the check and the add
+        if (getState() != State.DISPOSING && mDisposalCallbacks.remove(callback)) {
+            callback.run();
+        }
+    }
+
+    private void notifyWaiters(String message) {
+        Waiter waiter;
+        while ((waiter = mWaiters.poll()) != null) {
+            // read the state for every waiter, a later transition may have overtaken this one
+            if (getState() == State.READY) {
+                waiter.onReady();
+            } else {
+                waiter.onFailed(message);
+            }
+        }
+    }
+
+    private void runDisposalCallbacks() {
+        Runnable callback;
+        while ((callback = mDisposalCallbacks.poll()) != null) {
+            callback.run();
+        }
+    }
+
+    private static State stateOf(int ctl) {
+        return STATES[ctl & STATE_MASK];
+    }
+
+    private static int leasesOf(int ctl) {
+        return ctl >>> STATE_BITS;
+    }
+
+    private static int ctlOf(State state, int leases) {
+        return (leases << STATE_BITS) | state.ordinal();
+    }
+
+
+    /** Private Members **/
+
+    // the state is kept in the low bits of the control integer, the lease count above them
+    private static final int STATE_BITS = 2;
+    private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+    private static final int LEASE = 1 << STATE_BITS;
+    private static final State[] STATES = State.values();
+
+    private final AtomicInteger mCtl = new AtomicInteger(ctlOf(State.DISCONNECTED, 0));
+    private final ConcurrentLinkedQueue<Waiter> mWaiters = new ConcurrentLinkedQueue<Waiter>();
+    private final ConcurrentLinkedQueue<Runnable> mDisposalCallbacks = new ConcurrentLinkedQueue<Runnable>();
+}
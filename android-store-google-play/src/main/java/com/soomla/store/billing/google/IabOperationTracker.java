@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+/**
+ * Keeps track of the async operations running in a <code>GoogleIabHelper</code>.
+ *
+ * Mutating operations (purchase and consume) are serialized with each other. Read-only
+ * operations (restore and SKU details fetch) run alongside anything else, but only one of each
+ * kind at a time, as <code>IabHelper</code> keeps a single listener for each of them.
+ */
+public class IabOperationTracker {
+
+    /**
+     * The kinds of async operations.
+     */
+    public enum Kind {
+        PURCHASE(true),
+        CONSUME(true),
+        RESTORE(false),
+        FETCH_SKUS(false);
+
+        Kind(boolean mutating) {
+            mMutating = mutating;
+        }
+
+        public boolean isMutating() {
+            return mMutating;
+        }
+
+        /**
+         * Returns the kind of the operation with the given name, as passed to
+         * <code>IabHelper.flagStartAsync</code>. Unknown operations are treated as mutating.
+         */
+        public static Kind fromOperationName(String operation) {
+            if ("restore purchases".equals(operation)) {
+                return RESTORE;
+            }
+            if ("fetch skus details".equals(operation)) {
+                return FETCH_SKUS;
+            }
+            if ("consume".equals(operation)) {
+                return CONSUME;
+            }
+            return PURCHASE;
+        }
+
+        private final boolean mMutating;
+    }
+
+    /**
+     * Marks an operation as started.
+     *
+     * @param kind the kind of the operation.
+     * @param operation the name of the operation, for the error message.
+     * @throws IllegalStateException if the operation can't run alongside the running ones.
+     */
+    public synchronized void start(Kind kind, String operation) {
+        String blocking = null;
+        if (kind.isMutating()) {
+            for (Kind running : Kind.values()) {
+                if (running.isMutating() && mCounts[running.ordinal()] > 0) {
+                    blocking = running.name();
+                }
+            }
+        } else if (mCounts[kind.ordinal()] > 0) {
+            blocking = kind.name();
+        }
+
+        if (blocking != null) {
+            throw new IllegalStateException("Can't start async operation (" + operation
+                    + ") because another async operation (" + blocking + ") is in progress.");
+        }
+        mCounts[kind.ordinal()]++;
+    }
+
+    /**
+     * Marks an internal background operation (e.g. a journal replay or a buy intent prefetch)
+     * as started. It keeps the tracker busy like any other operation, but it's never refused
+     * and never makes the operations started with {@link #start} fail.
+     *
+     * @param kind the kind of the operation.
+     */
+    public synchronized void startBackground(Kind kind) {
+        mBackgroundCounts[kind.ordinal()]++;
+    }
+
+    /**
+     * Marks an internal background operation as finished. Does nothing if no background
+     * operation of that kind is running.
+     *
+     * @param kind the kind of the operation.
+     */
+    public synchronized void endBackground(Kind kind) {
+        if (mBackgroundCounts[kind.ordinal()] > 0) {
+            mBackgroundCounts[kind.ordinal()]--;
+        }
+    }
+
+    /**
+     * Marks an operation as finished. Does nothing if no operation of that kind is running.
+     *
+     * @param kind the kind of the operation.
+     */
+    public synchronized void end(Kind kind) {
+        if (mCounts[kind.ordinal()] > 0) {
+            mCounts[kind.ordinal()]--;
+        }
+    }
+
+    public synchronized int getRunningCount(Kind kind) {
+        return mCounts[kind.ordinal()];
+    }
+
+    public synchronized int getBackgroundCount(Kind kind) {
+        return mBackgroundCounts[kind.ordinal()];
+    }
+
+    public synchronized boolean isAnyRunning() {
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] > 0 || mBackgroundCounts[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** Private Members **/
+
+    private final int[] mCounts = new int[Kind.values().length];
+    private final int[] mBackgroundCounts = new int[Kind.values().length];
+}
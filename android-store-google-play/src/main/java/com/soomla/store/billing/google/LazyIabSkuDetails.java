@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.billing.IabSkuDetails;
+import org.json.JSONException;
+
+/**
+ * <code>IabSkuDetails</code> read from Google Play's SKU details with
+ * <code>BillingPayloadParser</code>, in a single pass and without building a
+ * <code>JSONObject</code>.
+ *
+ * The description, usually the largest field, is skipped and kept in the raw JSON until it's
+ * asked for, since the catalog doesn't need it.
+ */
+public class LazyIabSkuDetails extends IabSkuDetails {
+
+    /**
+     * Creates SKU details from Google Play's response. Responses that the parser can't handle
+     * are parsed with <code>JSONObject</code>, into a plain <code>IabSkuDetails</code>.
+     *
+     * @param itemType the item type of the SKU.
+     * @param json Google Play's SKU details.
+     * @throws JSONException if the SKU details aren't a JSON object.
+     */
+    public static IabSkuDetails fromJson(String itemType, String json) throws JSONException {
+        return fromJson(itemType, json, new BillingPayloadParser());
+    }
+
+    /**
+     * Same as {@link #fromJson(String, String)}, reusing the given parser. Used when reading a
+     * whole chunk of SKU details.
+     */
+    static IabSkuDetails fromJson(String itemType, String json, BillingPayloadParser parser) throws JSONException {
+        String[] strings = new String[FIELDS.length];
+        long[] numbers = new long[FIELDS.length];
+        try {
+            parser.parse(json, FIELDS, strings, numbers);
+        } catch (IllegalArgumentException e) {
+            return new IabSkuDetails(itemType, json);
+        }
+        return new LazyIabSkuDetails(itemType, json, orEmpty(strings[0]), orEmpty(strings[1]),
+                orEmpty(strings[2]), orEmpty(strings[3]), numbers[4], orEmpty(strings[5]));
+    }
+
+    private LazyIabSkuDetails(String itemType, String json, String sku, String type, String price,
+                              String title, long priceMicros, String currencyCode) {
+        super(itemType, sku, price, title, null, priceMicros, currencyCode);
+        mJson = json;
+        mType = type;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+
+    /** Setters and Getters **/
+
+    @Override
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * Parses the description out of the raw JSON, the first time it's asked for.
+     */
+    @Override
+    public synchronized String getDescription() {
+        if (mDescription == null) {
+            String[] strings = new String[DESCRIPTION_FIELD.length];
+            try {
+                new BillingPayloadParser().parse(mJson, DESCRIPTION_FIELD, strings, null);
+            } catch (IllegalArgumentException e) {
+                // the first pass accepted it, so this shouldn't happen
+                SoomlaUtils.LogError(TAG, "Couldn't parse SKU details: " + e.getMessage());
+            }
+            mDescription = orEmpty(strings[0]);
+        }
+        return mDescription;
+    }
+
+    @Override
+    public String getJson() {
+        return mJson;
+    }
+
+    @Override
+    public String toString() {
+        return "IabSkuDetails:" + mJson;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA LazyIabSkuDetails";
+
+    private static final String[] FIELDS = {
+            "productId", "type", "price", "title", "price_amount_micros", "price_currency_code" };
+    private static final String[] DESCRIPTION_FIELD = { "description" };
+
+    private final String mJson;
+    private final String mType;
+    private String mDescription;
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.store.billing.IabPurchase;
+import org.json.JSONException;
+
+/**
+ * <code>IabPurchase</code> read from Google Play's purchase data with
+ * <code>BillingPayloadParser</code>, in a single pass and without building a
+ * <code>JSONObject</code>.
+ *
+ * Restores and verifications read every field of a purchase, so all of them are parsed up front.
+ */
+public class ParsedIabPurchase extends IabPurchase {
+
+    /**
+     * Creates a purchase from Google Play's purchase data. Purchase data that the parser
+     * can't handle is parsed with <code>JSONObject</code>, into a plain <code>IabPurchase</code>.
+     *
+     * @param itemType the item type of the purchase.
+     * @param jsonPurchaseInfo Google Play's purchase data.
+     * @param signature the signature of the purchase data.
+     * @throws JSONException if the purchase data isn't a JSON object.
+     */
+    public static IabPurchase fromJson(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
+        return fromJson(itemType, jsonPurchaseInfo, signature, new BillingPayloadParser());
+    }
+
+    /**
+     * Same as {@link #fromJson(String, String, String)}, reusing the given parser. Used when
+     * reading a whole page of purchases.
+     */
+    static IabPurchase fromJson(String itemType, String jsonPurchaseInfo, String signature,
+                                BillingPayloadParser parser) throws JSONException {
+        String[] strings = new String[FIELDS.length];
+        long[] numbers = new long[FIELDS.length];
+        try {
+            parser.parse(jsonPurchaseInfo, FIELDS, strings, numbers);
+        } catch (IllegalArgumentException e) {
+            return new IabPurchase(itemType, jsonPurchaseInfo, signature);
+        }
+
+        String token = strings[1] != null ? strings[1] : strings[2];
+        return new ParsedIabPurchase(itemType, jsonPurchaseInfo, signature,
+                orEmpty(strings[0]), orEmpty(token), orEmpty(strings[3]), orEmpty(strings[4]),
+                numbers[5], (int) numbers[6], orEmpty(strings[7]));
+    }
+
+    private ParsedIabPurchase(String itemType, String json, String signature, String sku, String token,
+                              String orderId, String packageName, long purchaseTime, int purchaseState,
+                              String developerPayload) {
+        super(itemType, sku, token, orderId, purchaseState);
+        setDeveloperPayload(developerPayload);
+        mJson = json;
+        mSignature = signature;
+        mPackageName = packageName;
+        mPurchaseTime = purchaseTime;
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+
+    /** Setters and Getters **/
+
+    @Override
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    @Override
+    public long getPurchaseTime() {
+        return mPurchaseTime;
+    }
+
+    @Override
+    public String getOriginalJson() {
+        return mJson;
+    }
+
+    @Override
+    public String getSignature() {
+        return mSignature;
+    }
+
+    @Override
+    public String toString() {
+        return "PurchaseInfo(type:" + getItemType() + "):" + mJson;
+    }
+
+
+    /** Private Members **/
+
+    private static final String[] FIELDS = { "productId", "token", "purchaseToken", "orderId",
+            "packageName", "purchaseTime", "purchaseState", "developerPayload" };
+
+    private final String mJson;
+    private final String mSignature;
+    private final String mPackageName;
+    private final long mPurchaseTime;
+}
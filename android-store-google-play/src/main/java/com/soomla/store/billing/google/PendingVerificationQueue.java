@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.text.TextUtils;
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.billing.IabPurchase;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durable queue of purchases that couldn't be verified because the verification server
+ * was unreachable. Entries are keyed by purchase token and survive app restarts.
+ *
+ * While the queue isn't empty it listens to connectivity changes, and asks the
+ * <code>GooglePlayIabService</code> to drain it once the network comes back.
+ */
+public class PendingVerificationQueue {
+
+    /**
+     * Adds a purchase to the queue. Adding a purchase that's already queued does nothing.
+     *
+     * @param purchase the purchase to verify later.
+     */
+    public synchronized void enqueue(IabPurchase purchase) {
+        String token = purchase.getToken();
+        if (TextUtils.isEmpty(token) || TextUtils.isEmpty(purchase.getOriginalJson())) {
+            SoomlaUtils.LogError(TAG, "Can't queue a purchase without token or data: " + purchase.getSku());
+            return;
+        }
+
+        Map<String, JSONObject> entries = getEntries();
+        if (entries.containsKey(token)) {
+            return;
+        }
+
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(ITEM_TYPE, purchase.getItemType());
+            entry.put(PURCHASE_DATA, purchase.getOriginalJson());
+            entry.put(SIGNATURE, purchase.getSignature());
+            entries.put(token, entry);
+            save();
+            SoomlaUtils.LogDebug(TAG, "Queued purchase for later verification: " + purchase.getSku());
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't queue purchase for later verification: " + e.getMessage());
+        }
+
+        registerConnectivityReceiver();
+    }
+
+    /**
+     * Returns up to <code>max</code> queued purchases, oldest first, without removing them.
+     *
+     * @param max maximum number of purchases to return.
+     */
+    public synchronized List<IabPurchase> peekBatch(int max) {
+        List<IabPurchase> batch = new ArrayList<IabPurchase>();
+        Iterator<Map.Entry<String, JSONObject>> iterator = getEntries().entrySet().iterator();
+        while (iterator.hasNext() && batch.size() < max) {
+            Map.Entry<String, JSONObject> entry = iterator.next();
+            JSONObject value = entry.getValue();
+            try {
+                batch.add(new IabPurchase(value.getString(ITEM_TYPE), value.getString(PURCHASE_DATA),
+                        value.optString(SIGNATURE, null)));
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Dropping broken queued purchase: " + e.getMessage());
+                iterator.remove();
+                save();
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Removes a purchase from the queue, after it got its final verdict.
+     *
+     * @param purchase the purchase to remove.
+     */
+    public synchronized void remove(IabPurchase purchase) {
+        if (getEntries().remove(purchase.getToken()) != null) {
+            save();
+        }
+        if (mEntries.isEmpty()) {
+            unregisterConnectivityReceiver();
+        }
+    }
+
+    /**
+     * Moves a purchase whose verification failed again to the back of the queue, so the
+     * purchases behind it get their turn. A purchase that failed {@link #MAX_ATTEMPTS} times is
+     * dropped from the queue.
+     *
+     * @param purchase the purchase that couldn't be verified.
+     * @return true if the purchase is still queued, false if it was dropped.
+     */
+    public synchronized boolean retryLater(IabPurchase purchase) {
+        JSONObject entry = getEntries().remove(purchase.getToken());
+        if (entry == null) {
+            return false;
+        }
+
+        int attempts = entry.optInt(ATTEMPTS, 0) + 1;
+        boolean queued = attempts < MAX_ATTEMPTS;
+        if (queued) {
+            try {
+                entry.put(ATTEMPTS, attempts);
+            } catch (JSONException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't count a verification attempt: " + e.getMessage());
+            }
+            mEntries.put(purchase.getToken(), entry);
+        } else {
+            SoomlaUtils.LogError(TAG, "Giving up on verifying purchase after " + attempts + " attempts: "
+                    + purchase.getSku());
+        }
+
+        save();
+        if (mEntries.isEmpty()) {
+            unregisterConnectivityReceiver();
+        }
+        return queued;
+    }
+
+    public synchronized boolean isEmpty() {
+        return getEntries().isEmpty();
+    }
+
+    /**
+     * Starts listening to connectivity changes if there's anything waiting in the queue.
+     * Call it once the verification is configured, to resume a queue left from a previous run.
+     */
+    public synchronized void resume() {
+        if (!getEntries().isEmpty()) {
+            registerConnectivityReceiver();
+        }
+    }
+
+    private Map<String, JSONObject> getEntries() {
+        if (mEntries == null) {
+            mEntries = new LinkedHashMap<String, JSONObject>();
+            String value = KeyValueStorage.getValue(QUEUE_KEY);
+            if (!TextUtils.isEmpty(value)) {
+                try {
+                    JSONObject jsonObject = new JSONObject(value);
+                    Iterator<String> keys = jsonObject.keys();
+                    while (keys.hasNext()) {
+                        String token = keys.next();
+                        mEntries.put(token, jsonObject.getJSONObject(token));
+                    }
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't load the pending verifications queue: " + e.getMessage());
+                }
+            }
+        }
+        return mEntries;
+    }
+
+    private void save() {
+        if (mEntries.isEmpty()) {
+            KeyValueStorage.deleteKeyValue(QUEUE_KEY);
+            return;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject();
+            for (Map.Entry<String, JSONObject> entry : mEntries.entrySet()) {
+                jsonObject.put(entry.getKey(), entry.getValue());
+            }
+            KeyValueStorage.setValue(QUEUE_KEY, jsonObject.toString());
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't save the pending verifications queue: " + e.getMessage());
+        }
+    }
+
+    private void registerConnectivityReceiver() {
+        if (mConnectivityReceiver != null || SoomlaApp.getAppContext() == null) {
+            return;
+        }
+
+        mConnectivityReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                    SoomlaUtils.LogDebug(TAG, "Connectivity is back, draining pending verifications.");
+                    GooglePlayIabService.getInstance().drainPendingVerifications();
+                }
+            }
+        };
+        SoomlaApp.getAppContext().registerReceiver(mConnectivityReceiver,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    private void unregisterConnectivityReceiver() {
+        if (mConnectivityReceiver != null) {
+            SoomlaApp.getAppContext().unregisterReceiver(mConnectivityReceiver);
+            mConnectivityReceiver = null;
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA PendingVerificationQueue";
+
+    private static final String QUEUE_KEY = "soomla.verification.pendingQueue";
+    private static final String ITEM_TYPE = "itemType";
+    private static final String PURCHASE_DATA = "purchaseData";
+    private static final String SIGNATURE = "signature";
+    private static final String ATTEMPTS = "attempts";
+
+    // verification attempts after which a purchase is dropped from the queue
+    public static final int MAX_ATTEMPTS = 10;
+
+    private Map<String, JSONObject> mEntries;
+    private BroadcastReceiver mConnectivityReceiver;
+}
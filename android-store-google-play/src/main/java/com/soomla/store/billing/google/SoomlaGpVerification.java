@@ -1,10 +1,7 @@
 package com.soomla.store.billing.google;
 
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.text.TextUtils;
 
-import com.soomla.SoomlaApp;
 import com.soomla.SoomlaUtils;
 import com.soomla.store.billing.IabPurchase;
 import com.soomla.store.events.UnexpectedStoreErrorEvent;
@@ -16,17 +13,15 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * @author vedi
@@ -38,12 +33,28 @@ public class SoomlaGpVerification {
     private static final String GOOGLE_AUTH_URL = "https://accounts.google.com/o/oauth2/token";
     private static final String TAG = "SOOMLA SoomlaGpVerification";
 
+    private static final int CONNECTION_TIMEOUT = 10 * 1000;
+    private static final int SOCKET_TIMEOUT = 15 * 1000;
+
+    // shared by all verifications, so an outage is detected across purchases
+    private static final VerificationCircuitBreaker sCircuitBreaker =
+            new VerificationCircuitBreaker(3, 5 * 1000, 5 * 60 * 1000);
+
+    /**
+     * The error code of a verification that can't succeed by trying again: the server or Google
+     * rejected the request, or answered with something we can't read.
+     * <code>VERIFICATION_TIMEOUT</code> is kept for failures that are worth retrying.
+     */
+    public static final UnexpectedStoreErrorEvent.ErrorCode PERMANENT_FAILURE =
+            UnexpectedStoreErrorEvent.ErrorCode.GENERAL;
+
     private final IabPurchase purchase;
     private final String clientId;
     private final String clientSecret;
     private final String refreshToken;
     private final boolean verifyOnServerFailure;
     private String accessToken = null;
+    private boolean serverFailure = false;
 
     public SoomlaGpVerification(IabPurchase purchase, String clientId, String clientSecret, String refreshToken, boolean verifyOnServerFailure) {
         if (purchase == null || TextUtils.isEmpty(clientId) || TextUtils.isEmpty(clientSecret) || TextUtils.isEmpty(refreshToken)) {
@@ -59,12 +70,26 @@ public class SoomlaGpVerification {
         this.purchase = purchase;
     }
 
-    private HttpResponse doVerifyPost(JSONObject jsonObject) throws IOException {
-        HttpClient client = new DefaultHttpClient();
+    /**
+     * Checks whether verifications are currently short-circuited because the verification
+     * server keeps failing.
+     */
+    public static boolean isServerUnavailable() {
+        return sCircuitBreaker.getState() == VerificationCircuitBreaker.State.OPEN;
+    }
+
+    private static HttpClient createHttpClient() {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+        return new DefaultHttpClient(params);
+    }
+
+    private HttpResponse doVerifyPost(String body) throws IOException {
+        HttpClient client = createHttpClient();
         HttpPost post = new HttpPost(VERIFY_URL);
         post.setHeader("Content-type", "application/json");
 
-        String body = jsonObject.toString();
         post.setEntity(new StringEntity(body, "UTF8"));
         return client.execute(post);
     }
@@ -74,6 +99,14 @@ public class SoomlaGpVerification {
 
         UnexpectedStoreErrorEvent.ErrorCode errorCode = UnexpectedStoreErrorEvent.ErrorCode.VERIFICATION_TIMEOUT;
 
+        if (!sCircuitBreaker.allowRequest()) {
+            SoomlaUtils.LogError(TAG, "Verification server is unavailable, skipping server verification for: " +
+                    purchase.getSku());
+            purchase.setServerVerified(verified);
+            purchase.setVerificationErrorCode(errorCode);
+            return;
+        }
+
         try {
             if (refreshToken()) {
 
@@ -94,70 +127,69 @@ public class SoomlaGpVerification {
                     SoomlaUtils.LogDebug(TAG, String.format("verifying purchase on server: %s", VERIFY_URL));
                     SoomlaUtils.LogDebug(TAG, "purchase details: sku = " + purchase.getSku() + " token = " + purchaseToken);
 
-                    SharedPreferences prefs = SoomlaApp.getAppContext().
-                            getSharedPreferences("store.verification.prefs", Context.MODE_PRIVATE);
-                    Map<String, ?> extraData = prefs.getAll();
-                    if (extraData != null && !extraData.keySet().isEmpty()) {
-                        for (String key : extraData.keySet()) {
-                            jsonObject.put(key, extraData.get(key));
-                        }
-                    }
-
-                    HttpResponse resp = doVerifyPost(jsonObject);
+                    HttpResponse resp = doVerifyPost(VerificationExtraData.appendTo(jsonObject.toString()));
 
-                    if (resp != null) {
+                    if (resp != null && resp.getStatusLine().getStatusCode() >= 500) {
+                        serverFailure = true;
+                        SoomlaUtils.LogError(TAG, "Verification server error: " + resp.getStatusLine().getStatusCode());
+                    } else if (resp != null) {
                         int statusCode = resp.getStatusLine().getStatusCode();
 
-                        StringBuilder stringBuilder = new StringBuilder();
-                        InputStream inputStream = resp.getEntity().getContent();
-                        Reader reader = new BufferedReader(new InputStreamReader(inputStream));
-                        final char[] buffer = new char[1024];
-                        int bytesRead;
-                        while ((bytesRead = reader.read(buffer, 0, buffer.length)) > 0) {
-                            stringBuilder.append(buffer, 0, bytesRead);
-                        }
-                        JSONObject resultJsonObject = new JSONObject(stringBuilder.toString());
                         if (statusCode >= 200 && statusCode <= 299) {
-                            verified = resultJsonObject.optBoolean("verified", false);
+                            VerificationResponseParser.VerifyResponse verifyResponse =
+                                    VerificationResponseParser.parseVerifyResponse(resp.getEntity().getContent());
+                            verified = verifyResponse.verified;
                             if (verified) {
                                 errorCode = null;
                             } else {
                                 errorCode = UnexpectedStoreErrorEvent.ErrorCode.VERIFICATION_FAIL;
                                 SoomlaUtils.LogError(TAG, "Failed to verify transaction receipt. The user will not get what he just bought.");
-                                try {
-                                    SoomlaUtils.LogError(TAG, "Reason: " + resultJsonObject.getJSONObject("reason").getJSONObject("error").getString("message"));
-                                } catch (JSONException jsonException) {
-                                    //nothing to to, just can't find required field in JSON
+                                if (verifyResponse.reason != null) {
+                                    SoomlaUtils.LogError(TAG, "Reason: " + verifyResponse.reason);
                                 }
                             }
                         } else {
+                            errorCode = PERMANENT_FAILURE;
                             SoomlaUtils.LogError(TAG, "An error occurred while trying to get receipt purchaseToken. " +
                                     "Stopping the purchasing process for: " + SoomlaGpVerification.this.purchase.getSku());
                         }
                     } else {
+                        serverFailure = true;
                         SoomlaUtils.LogError(TAG, "Got null response");
                     }
                 } else {
+                    errorCode = PERMANENT_FAILURE;
                     SoomlaUtils.LogError(TAG, "An error occurred while trying to get receipt purchaseToken. " +
                             "Stopping the purchasing process for: " + SoomlaGpVerification.this.purchase.getSku());
                 }
             } else {
+                if (!serverFailure) {
+                    errorCode = PERMANENT_FAILURE;
+                }
                 SoomlaUtils.LogError(TAG, "Cannot refresh token");
             }
 
         } catch (JSONException e) {
+            errorCode = PERMANENT_FAILURE;
             SoomlaUtils.LogError(TAG, "Cannot build up json for verification: " + e);
         } catch (IOException e) {
+            serverFailure = true;
             SoomlaUtils.LogError(TAG, e.getMessage());
         }
 
+        if (serverFailure) {
+            sCircuitBreaker.recordFailure();
+        } else {
+            sCircuitBreaker.recordSuccess();
+        }
+
         purchase.setServerVerified(verified);
         purchase.setVerificationErrorCode(errorCode);
     }
 
     private boolean refreshToken() throws IOException, JSONException {
         this.accessToken = null;
-        HttpClient client = new DefaultHttpClient();
+        HttpClient client = createHttpClient();
         HttpPost post = new HttpPost(GOOGLE_AUTH_URL);
 
         List<NameValuePair> urlParameters = new ArrayList<NameValuePair>();
@@ -171,27 +203,24 @@ public class SoomlaGpVerification {
         HttpResponse resp = client.execute(post);
 
         if (resp == null) {
+            serverFailure = true;
             SoomlaUtils.LogError(TAG, "Failed to connect to google server.");
             return false;
         }
 
-        StringBuilder stringBuilder = new StringBuilder();
-        InputStream inputStream = resp.getEntity().getContent();
-        Reader reader = new BufferedReader(new InputStreamReader(inputStream));
-        final char[] buffer = new char[1024];
-        int bytesRead;
-        while ((bytesRead = reader.read(buffer, 0, buffer.length)) > 0) {
-            stringBuilder.append(buffer, 0, bytesRead);
+        int statusCode = resp.getStatusLine().getStatusCode();
+        if (statusCode >= 500) {
+            serverFailure = true;
+            SoomlaUtils.LogError(TAG, "Google server error while refreshing the token: " + statusCode);
+            return false;
         }
-        JSONObject resultJsonObject = new JSONObject(stringBuilder.toString());
 
-        int statusCode = resp.getStatusLine().getStatusCode();
         if (statusCode < 200 || statusCode > 299) {
             SoomlaUtils.LogError(TAG, "There was a problem refreshing the token. Will try again later.");
             return false;
         }
 
-        this.accessToken = resultJsonObject.optString("access_token");
+        this.accessToken = VerificationResponseParser.parseTokenResponse(resp.getEntity().getContent());
 
         return !TextUtils.isEmpty(this.accessToken);
     }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.KeyValueStorage;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.events.UnexpectedStoreErrorEvent;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Durable cache of server verification verdicts, keyed by purchase token.
+ *
+ * A purchase token's verdict doesn't change once the server answered, so restoring the same
+ * purchases again doesn't have to go to the network. Only conclusive verdicts (verified or
+ * rejected by the server) are stored - outcomes decided by <code>verifyOnServerFailure</code>
+ * are never cached.
+ *
+ * The stored verdicts are tracked in an index, with their expiration time. Expired verdicts are
+ * swept whenever a verdict is stored, and the oldest ones are evicted beyond
+ * {@link #MAX_ENTRIES}, so tokens that are never looked up again don't stay in storage forever.
+ */
+public class VerificationCache {
+
+    public static final long DEFAULT_VERIFIED_TTL = 24 * 60 * 60 * 1000L;
+    public static final long DEFAULT_FAILED_TTL = 60 * 60 * 1000L;
+    public static final int MAX_ENTRIES = 500;
+
+    /**
+     * Constructor
+     *
+     * @param verifiedTtl how long (in milliseconds) a positive verdict stays valid, 0 to disable.
+     * @param failedTtl how long (in milliseconds) a negative verdict stays valid, 0 to disable.
+     */
+    public VerificationCache(long verifiedTtl, long failedTtl) {
+        mVerifiedTtl = verifiedTtl;
+        mFailedTtl = failedTtl;
+    }
+
+    /**
+     * Applies a cached verdict to the given purchase, if there's a valid one.
+     *
+     * @param purchase the purchase to look up.
+     * @return true if the purchase got its verdict from the cache.
+     */
+    public boolean applyCachedVerdict(IabPurchase purchase) {
+        String token = purchase.getToken();
+        if (TextUtils.isEmpty(token) || (mVerifiedTtl <= 0 && mFailedTtl <= 0)) {
+            return false;
+        }
+
+        String key = keyForToken(token);
+        String value = KeyValueStorage.getValue(key);
+        if (TextUtils.isEmpty(value)) {
+            return false;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(value);
+            boolean verified = jsonObject.getBoolean(VERIFIED);
+            long timestamp = jsonObject.getLong(TIMESTAMP);
+            long ttl = verified ? mVerifiedTtl : mFailedTtl;
+            if (System.currentTimeMillis() - timestamp > ttl) {
+                evict(token);
+                return false;
+            }
+
+            purchase.setServerVerified(verified);
+            purchase.setVerificationErrorCode(verified ? null :
+                    UnexpectedStoreErrorEvent.ErrorCode.valueOf(jsonObject.getString(ERROR_CODE)));
+            SoomlaUtils.LogDebug(TAG, "Using cached verification verdict for sku: " + purchase.getSku());
+            return true;
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't parse cached verdict, dropping it: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            SoomlaUtils.LogError(TAG, "Unknown error code in cached verdict, dropping it: " + e.getMessage());
+        }
+        evict(token);
+        return false;
+    }
+
+    /**
+     * Stores the verdict the server gave for the given purchase.
+     * Verdicts that didn't come from the server are ignored.
+     *
+     * @param purchase a purchase that just went through server verification.
+     */
+    public void storeVerdict(IabPurchase purchase) {
+        String token = purchase.getToken();
+        if (TextUtils.isEmpty(token)) {
+            return;
+        }
+
+        UnexpectedStoreErrorEvent.ErrorCode errorCode = purchase.getVerificationErrorCode();
+        boolean verified = errorCode == null && purchase.isServerVerified();
+        boolean rejected = errorCode == UnexpectedStoreErrorEvent.ErrorCode.VERIFICATION_FAIL;
+        if ((verified && mVerifiedTtl <= 0) || (rejected && mFailedTtl <= 0) || (!verified && !rejected)) {
+            return;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(VERIFIED, verified);
+            if (rejected) {
+                jsonObject.put(ERROR_CODE, errorCode.name());
+            }
+            long now = System.currentTimeMillis();
+            jsonObject.put(TIMESTAMP, now);
+            KeyValueStorage.setValue(keyForToken(token), jsonObject.toString());
+            index(token, now + (verified ? mVerifiedTtl : mFailedTtl));
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't cache verification verdict: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a stored verdict to the index, then deletes the expired verdicts and the oldest
+     * ones beyond {@link #MAX_ENTRIES}.
+     */
+    private static void index(String token, long expiresAt) {
+        synchronized (VerificationCache.class) {
+            Map<String, Long> index = getIndex();
+            // re-inserted, so it's the newest
+            index.remove(token);
+            index.put(token, expiresAt);
+
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (entry.getValue() < now || index.size() > MAX_ENTRIES) {
+                    KeyValueStorage.deleteKeyValue(keyForToken(entry.getKey()));
+                    iterator.remove();
+                }
+            }
+            saveIndex();
+        }
+    }
+
+    private static void evict(String token) {
+        KeyValueStorage.deleteKeyValue(keyForToken(token));
+        synchronized (VerificationCache.class) {
+            if (getIndex().remove(token) != null) {
+                saveIndex();
+            }
+        }
+    }
+
+    private static Map<String, Long> getIndex() {
+        if (sIndex == null) {
+            sIndex = new LinkedHashMap<String, Long>();
+            String value = KeyValueStorage.getValue(INDEX_KEY);
+            if (!TextUtils.isEmpty(value)) {
+                try {
+                    JSONObject jsonObject = new JSONObject(value);
+                    Iterator<String> keys = jsonObject.keys();
+                    while (keys.hasNext()) {
+                        String token = keys.next();
+                        sIndex.put(token, jsonObject.getLong(token));
+                    }
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Couldn't load the verification cache index: " + e.getMessage());
+                }
+            }
+        }
+        return sIndex;
+    }
+
+    private static void saveIndex() {
+        if (sIndex.isEmpty()) {
+            KeyValueStorage.deleteKeyValue(INDEX_KEY);
+            return;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject();
+            for (Map.Entry<String, Long> entry : sIndex.entrySet()) {
+                jsonObject.put(entry.getKey(), entry.getValue().longValue());
+            }
+            KeyValueStorage.setValue(INDEX_KEY, jsonObject.toString());
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't save the verification cache index: " + e.getMessage());
+        }
+    }
+
+    private static String keyForToken(String token) {
+        return KEY_PREFIX + token;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA VerificationCache";
+
+    private static final String KEY_PREFIX = "soomla.verification.cache.";
+    private static final String INDEX_KEY = "soomla.verification.cacheIndex";
+    private static final String VERIFIED = "verified";
+    private static final String ERROR_CODE = "errorCode";
+    private static final String TIMESTAMP = "timestamp";
+
+    // tokens of the stored verdicts, oldest first, with their expiration time
+    private static Map<String, Long> sIndex;
+
+    private final long mVerifiedTtl;
+    private final long mFailedTtl;
+}
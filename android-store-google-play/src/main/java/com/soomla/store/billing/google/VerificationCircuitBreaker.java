@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.os.SystemClock;
+import com.soomla.SoomlaUtils;
+
+import java.util.Random;
+
+/**
+ * Circuit breaker guarding the calls to the verification server (and the OAuth endpoint).
+ *
+ * After <code>failureThreshold</code> consecutive failures the circuit opens and requests are
+ * short-circuited. Once the backoff delay passes a single probe request is let through: if it
+ * succeeds the circuit closes, otherwise it opens again with a doubled (jittered) delay.
+ */
+public class VerificationCircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Constructor
+     *
+     * @param failureThreshold consecutive failures that open the circuit.
+     * @param baseDelay the first backoff delay (in milliseconds).
+     * @param maxDelay the maximum backoff delay (in milliseconds).
+     */
+    public VerificationCircuitBreaker(int failureThreshold, long baseDelay, long maxDelay) {
+        mFailureThreshold = failureThreshold;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+    }
+
+    /**
+     * Checks whether a request to the server may go out now.
+     *
+     * @return false if the circuit is open and the request should be short-circuited.
+     */
+    public synchronized boolean allowRequest() {
+        switch (mState) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (SystemClock.elapsedRealtime() >= mRetryAt) {
+                    SoomlaUtils.LogDebug(TAG, "Backoff passed, probing the verification server.");
+                    mState = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                // a probe is already in flight
+                return false;
+        }
+    }
+
+    /**
+     * Records a request that reached the server.
+     */
+    public synchronized void recordSuccess() {
+        if (mState != State.CLOSED) {
+            SoomlaUtils.LogDebug(TAG, "Verification server is back, closing the circuit.");
+        }
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenCount = 0;
+    }
+
+    /**
+     * Records a request that failed or timed out.
+     */
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN || mConsecutiveFailures >= mFailureThreshold) {
+            long delay = mBaseDelay << Math.min(mOpenCount, MAX_DOUBLINGS);
+            delay = Math.min(delay, mMaxDelay);
+            // equal jitter: keep half the delay, randomize the other half
+            delay = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+
+            mOpenCount++;
+            mState = State.OPEN;
+            mRetryAt = SystemClock.elapsedRealtime() + delay;
+            SoomlaUtils.LogError(TAG, "Verification server keeps failing, opening the circuit for " + delay + "ms.");
+        }
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA VerificationCircuitBreaker";
+
+    private static final int MAX_DOUBLINGS = 16;
+
+    private final int mFailureThreshold;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Random mRandom = new Random();
+
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures = 0;
+    private int mOpenCount = 0;
+    private long mRetryAt = 0;
+}
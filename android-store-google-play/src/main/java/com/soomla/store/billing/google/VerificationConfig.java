@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.text.TextUtils;
+
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the purchase verification configuration.
+ *
+ * It's built once by <code>GooglePlayIabService.configVerifyPurchases</code>, so the purchase and
+ * restore paths don't need to go to the (encrypted) storage for every purchase.
+ */
+public class VerificationConfig {
+
+    /**
+     * The configuration used when purchases shouldn't be verified.
+     */
+    public static final VerificationConfig DISABLED = new VerificationConfig();
+
+    /**
+     * Constructor
+     *
+     * @param config the verification config, as given to <code>configVerifyPurchases</code>.
+     * @throws IllegalArgumentException if one of the mandatory items is missing.
+     */
+    public VerificationConfig(Map<String, Object> config) {
+        mClientId = getStringConfigItem(config, "clientId");
+        mClientSecret = getStringConfigItem(config, "clientSecret");
+        mRefreshToken = getStringConfigItem(config, "refreshToken");
+        mVerifyOnServerFailure = getBooleanConfigItem(config, "verifyOnServerFailure");
+        mGrantBeforeServerVerification = getBooleanConfigItem(config, "grantBeforeServerVerification");
+        mVerifiedCacheTtl = getLongConfigItem(config, "verifiedCacheTtl", VerificationCache.DEFAULT_VERIFIED_TTL / 1000) * 1000;
+        mFailedCacheTtl = getLongConfigItem(config, "failedCacheTtl", VerificationCache.DEFAULT_FAILED_TTL / 1000) * 1000;
+        mEnabled = true;
+    }
+
+    private VerificationConfig() {
+        mClientId = null;
+        mClientSecret = null;
+        mRefreshToken = null;
+        mVerifyOnServerFailure = false;
+        mGrantBeforeServerVerification = false;
+        mVerifiedCacheTtl = VerificationCache.DEFAULT_VERIFIED_TTL;
+        mFailedCacheTtl = VerificationCache.DEFAULT_FAILED_TTL;
+        mEnabled = false;
+    }
+
+    private static String getStringConfigItem(Map<String, Object> config, String key) {
+        Object strToCheck = config.get(key);
+        if (strToCheck == null || !(strToCheck instanceof String) || TextUtils.isEmpty((String) strToCheck)) {
+            throw new IllegalArgumentException("Please, provide value for " + key);
+        }
+        return (String) strToCheck;
+    }
+
+    private static boolean getBooleanConfigItem(Map<String, Object> config, String key) {
+        Object value = config.get(key);
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    private static long getLongConfigItem(Map<String, Object> config, String key, long defaultValue) {
+        Object value = config.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+
+    /** Setters and Getters **/
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public String getClientId() {
+        return mClientId;
+    }
+
+    public String getClientSecret() {
+        return mClientSecret;
+    }
+
+    public String getRefreshToken() {
+        return mRefreshToken;
+    }
+
+    public boolean isVerifyOnServerFailure() {
+        return mVerifyOnServerFailure;
+    }
+
+    public boolean isGrantBeforeServerVerification() {
+        return mGrantBeforeServerVerification;
+    }
+
+    public long getVerifiedCacheTtl() {
+        return mVerifiedCacheTtl;
+    }
+
+    public long getFailedCacheTtl() {
+        return mFailedCacheTtl;
+    }
+
+
+    /** Private Members **/
+
+    private final boolean mEnabled;
+    private final String mClientId;
+    private final String mClientSecret;
+    private final String mRefreshToken;
+    private final boolean mVerifyOnServerFailure;
+    private final boolean mGrantBeforeServerVerification;
+    private final long mVerifiedCacheTtl;
+    private final long mFailedCacheTtl;
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of the extra data that's sent with every verification request.
+ *
+ * The extra data lives in the <code>store.verification.prefs</code> shared preferences. Instead of
+ * reading and serializing all of it for every purchase, it's serialized once and kept until the
+ * preferences change.
+ */
+class VerificationExtraData {
+
+    static final String PREFS_NAME = "store.verification.prefs";
+
+    /**
+     * The fields of the verification request itself. Extra data can't override them.
+     */
+    static final Set<String> RESERVED_KEYS = new HashSet<String>(
+            Arrays.asList("purchaseToken", "packageName", "productId", "accessToken"));
+
+    /**
+     * Adds the extra data fields to a serialized verification request.
+     * Extra data fields named like one of the {@link #RESERVED_KEYS} are left out.
+     *
+     * @param json a serialized JSON object.
+     * @return the serialized JSON object with the extra data fields.
+     */
+    static String appendTo(String json) {
+        return appendTo(json, getSerializedFields());
+    }
+
+    static String appendTo(String json, String fields) {
+        if (fields.length() == 0) {
+            return json;
+        }
+
+        int end = json.lastIndexOf('}');
+        boolean emptyObject = json.substring(json.indexOf('{') + 1, end).trim().length() == 0;
+        return json.substring(0, end) + (emptyObject ? "" : ",") + fields + json.substring(end);
+    }
+
+    private static synchronized String getSerializedFields() {
+        if (sSerializedFields == null) {
+            SharedPreferences prefs = SoomlaApp.getAppContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            if (sPreferenceChangeListener == null) {
+                // the preferences only keep a weak reference to it, so we hold on to it here
+                sPreferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        invalidate();
+                    }
+                };
+                prefs.registerOnSharedPreferenceChangeListener(sPreferenceChangeListener);
+            }
+            sSerializedFields = serializeFields(prefs.getAll());
+        }
+        return sSerializedFields;
+    }
+
+    private static synchronized void invalidate() {
+        sSerializedFields = null;
+    }
+
+    /**
+     * Serializes the extra data fields without the enclosing braces, leaving out the
+     * {@link #RESERVED_KEYS}.
+     */
+    static String serializeFields(Map<String, ?> values) {
+        if (values == null || values.isEmpty()) {
+            return "";
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject();
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                if (RESERVED_KEYS.contains(entry.getKey())) {
+                    SoomlaUtils.LogDebug(TAG, "Ignoring verification extra data " + entry.getKey()
+                            + ", it's a field of the verification request.");
+                    continue;
+                }
+                jsonObject.put(entry.getKey(), entry.getValue());
+            }
+            if (jsonObject.length() == 0) {
+                return "";
+            }
+            String json = jsonObject.toString();
+            return json.substring(1, json.length() - 1);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't serialize verification extra data: " + e.getMessage());
+            return "";
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static final String TAG = "SOOMLA VerificationExtraData";
+
+    // the extra data fields, serialized without the enclosing braces
+    private static String sSerializedFields;
+    private static SharedPreferences.OnSharedPreferenceChangeListener sPreferenceChangeListener;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Streaming parser for the responses of the verification server and the OAuth endpoint.
+ * Reads the few fields we need straight from the UTF-8 response stream and skips the rest,
+ * instead of buffering the whole body and building a <code>JSONObject</code> out of it.
+ */
+class VerificationResponseParser {
+
+    /**
+     * The fields we need from the verification server's response.
+     */
+    static class VerifyResponse {
+        boolean verified = false;
+        String reason = null;
+    }
+
+    /**
+     * Parses <code>{"verified": ..., "reason": {"error": {"message": ...}}}</code>.
+     * The stream is closed when done.
+     *
+     * @throws IOException if reading from the stream failed.
+     * @throws JSONException if the response isn't the JSON we expect.
+     */
+    static VerifyResponse parseVerifyResponse(InputStream inputStream) throws IOException, JSONException {
+        VerifyResponse response = new VerifyResponse();
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, UTF8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("verified".equals(name)) {
+                    response.verified = nextBoolean(reader);
+                } else if ("reason".equals(name)) {
+                    response.reason = nextReasonMessage(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException e) {
+            throw new JSONException("Malformed verification response: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new JSONException("Unexpected verification response: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return response;
+    }
+
+    /**
+     * Parses <code>{"access_token": ...}</code> and returns the access token, or null if there
+     * isn't one. The stream is closed when done.
+     *
+     * @throws IOException if reading from the stream failed.
+     * @throws JSONException if the response isn't the JSON we expect.
+     */
+    static String parseTokenResponse(InputStream inputStream) throws IOException, JSONException {
+        String accessToken = null;
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, UTF8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("access_token".equals(name) && reader.peek() == JsonToken.STRING) {
+                    accessToken = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException e) {
+            throw new JSONException("Malformed token response: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new JSONException("Unexpected token response: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return accessToken;
+    }
+
+    private static boolean nextBoolean(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        } else if (token == JsonToken.STRING) {
+            return Boolean.parseBoolean(reader.nextString());
+        }
+        reader.skipValue();
+        return false;
+    }
+
+    private static String nextReasonMessage(JsonReader reader) throws IOException {
+        String message = null;
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("error".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("message".equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                        message = reader.nextString();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return message;
+    }
+
+
+    /** Private Members **/
+
+    private static final String UTF8 = "UTF-8";
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.SoomlaConfig;
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the bytes allocated per item on the billing hot paths with debug logging off. Fails
+ * if the debug calls of the purchase, SKU details and consume loops allocate anything, or if
+ * reading a purchase with <code>ParsedIabPurchase</code> allocates as much as with
+ * <code>JSONObject</code>.
+ *
+ * Runs only with <code>./gradlew test -Pbenchmarks</code>, on a JVM that reports per-thread
+ * allocations (HotSpot).
+ */
+public class BillingAllocationBenchmark {
+
+    private static final int ITEMS = 10000;
+    private static final int ROUNDS = 5;
+    private static final String TAG = "SOOMLA BillingAllocationBenchmark";
+
+    private boolean mLogDebug;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("soomla.benchmarks"));
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        mLogDebug = SoomlaConfig.logDebug;
+        SoomlaConfig.logDebug = false;
+    }
+
+    @After
+    public void tearDown() {
+        SoomlaConfig.logDebug = mLogDebug;
+    }
+
+    @Test
+    public void disabledDebugLogging() {
+        final String sku = "gem_pack_100";
+        final String token = "opaque-token-up-to-150-characters.AO-J1OxW3vS8b-Qyx1cLZ7n";
+        final int response = 6;
+        double bytes = bytesPerItem(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ITEMS; i++) {
+                    BillingLog.debug(TAG, "Consuming sku: {}, token: {}", sku, token);
+                    BillingLog.debug(TAG, "Successfully consumed sku: {}", sku);
+                    BillingLog.debug(TAG, "Owned items response: {}", response);
+                    if (BillingLog.isDebugEnabled()) {
+                        BillingLog.debug(TAG, "Error consuming sku {}. {}", sku, describe(response));
+                    }
+                }
+            }
+        });
+        assertEquals("bytes per disabled debug call", 0, bytes, 0.5);
+    }
+
+    @Test
+    public void purchaseFields() throws Exception {
+        final List<String> payloads = new ArrayList<String>(ITEMS);
+        for (int i = 0; i < ITEMS; i++) {
+            payloads.add(BillingPayloadParserTest.PURCHASES[i % BillingPayloadParserTest.PURCHASES.length]);
+        }
+        final long[] checksum = new long[2];
+
+        double parsed = bytesPerItem(new Runnable() {
+            @Override
+            public void run() {
+                BillingPayloadParser parser = new BillingPayloadParser();
+                try {
+                    for (String json : payloads) {
+                        checksum[0] += checksum(ParsedIabPurchase.fromJson(IabHelper.ITEM_TYPE_INAPP, json, "signature", parser));
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        double eager = bytesPerItem(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (String json : payloads) {
+                        checksum[1] += checksum(new IabPurchase(IabHelper.ITEM_TYPE_INAPP, json, "signature"));
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        assertEquals(checksum[1], checksum[0]);
+        assertTrue(String.format("bytes per purchase: parser %.1f, JSONObject %.1f", parsed, eager), parsed < eager);
+    }
+
+    private static long checksum(IabPurchase purchase) {
+        return purchase.getSku().length() + purchase.getToken().length() + purchase.getOrderId().length()
+                + purchase.getPackageName().length() + purchase.getPurchaseTime() + purchase.getPurchaseState()
+                + purchase.getDeveloperPayload().length();
+    }
+
+    private static String describe(int response) {
+        return "response " + response;
+    }
+
+    /**
+     * Returns the fewest bytes the task allocated per item over a few rounds, after a warm-up
+     * round.
+     */
+    private static double bytesPerItem(Runnable task) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        assumeTrue(threads.getThreadAllocatedBytes(thread) >= 0);
+
+        long fewest = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            task.run();
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if (round > 0) {
+                fewest = Math.min(fewest, allocated);
+            }
+        }
+        return (double) fewest / ITEMS;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.billing.IabSkuDetails;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares reading a page of purchases and SKU details with <code>BillingPayloadParser</code>
+ * against the <code>JSONObject</code> based constructors, for 1k and 10k items, reading what
+ * the store reads: every field of a purchase, and the SKU details that go into the catalog.
+ * Fails if the results differ or the parser is slower.
+ *
+ * Runs only with <code>./gradlew test -Pbenchmarks</code>.
+ */
+public class BillingPayloadParserBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("soomla.benchmarks"));
+    }
+
+    @Test
+    public void purchases1k() throws Exception {
+        benchmarkPurchases(1000);
+    }
+
+    @Test
+    public void purchases10k() throws Exception {
+        benchmarkPurchases(10000);
+    }
+
+    @Test
+    public void skuDetails1k() throws Exception {
+        benchmarkSkuDetails(1000);
+    }
+
+    @Test
+    public void skuDetails10k() throws Exception {
+        benchmarkSkuDetails(10000);
+    }
+
+    private void benchmarkPurchases(int count) throws Exception {
+        List<String> payloads = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            payloads.add(BillingPayloadParserTest.PURCHASES[i % BillingPayloadParserTest.PURCHASES.length]
+                    .replace("\"productId\":\"", "\"productId\":\"" + i + "_"));
+        }
+
+        long jsonNanos = Long.MAX_VALUE;
+        long parserNanos = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            long jsonChecksum = 0;
+            for (String json : payloads) {
+                jsonChecksum += checksum(new IabPurchase(IabHelper.ITEM_TYPE_INAPP, json, "signature"));
+            }
+            long jsonTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            BillingPayloadParser parser = new BillingPayloadParser();
+            long parserChecksum = 0;
+            for (String json : payloads) {
+                parserChecksum += checksum(ParsedIabPurchase.fromJson(IabHelper.ITEM_TYPE_INAPP, json, "signature", parser));
+            }
+            long parserTime = System.nanoTime() - start;
+
+            assertEquals(jsonChecksum, parserChecksum);
+            if (round >= WARMUP_ROUNDS) {
+                jsonNanos = Math.min(jsonNanos, jsonTime);
+                parserNanos = Math.min(parserNanos, parserTime);
+            }
+        }
+
+        assertFaster(count + " purchases", parserNanos, jsonNanos);
+    }
+
+    private void benchmarkSkuDetails(int count) throws Exception {
+        List<String> payloads = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            payloads.add(BillingPayloadParserTest.SKU_DETAILS[i % BillingPayloadParserTest.SKU_DETAILS.length]
+                    .replace("\"productId\":\"", "\"productId\":\"" + i + "_"));
+        }
+
+        long jsonNanos = Long.MAX_VALUE;
+        long parserNanos = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            List<IabSkuDetails> parsed = new ArrayList<IabSkuDetails>(count);
+            for (String json : payloads) {
+                parsed.add(new IabSkuDetails(IabHelper.ITEM_TYPE_INAPP, json));
+            }
+            CompactSkuCatalog jsonCatalog = CompactSkuCatalog.fromSkuDetails(parsed);
+            long jsonTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            BillingPayloadParser parser = new BillingPayloadParser();
+            List<IabSkuDetails> lazy = new ArrayList<IabSkuDetails>(count);
+            for (String json : payloads) {
+                lazy.add(LazyIabSkuDetails.fromJson(IabHelper.ITEM_TYPE_INAPP, json, parser));
+            }
+            CompactSkuCatalog parserCatalog = CompactSkuCatalog.fromSkuDetails(lazy);
+            long parserTime = System.nanoTime() - start;
+
+            assertEquals(jsonCatalog.getAllSkus(), parserCatalog.getAllSkus());
+            assertEquals(jsonCatalog.getPriceMicrosAt(count - 1), parserCatalog.getPriceMicrosAt(count - 1));
+            if (round >= WARMUP_ROUNDS) {
+                jsonNanos = Math.min(jsonNanos, jsonTime);
+                parserNanos = Math.min(parserNanos, parserTime);
+            }
+        }
+
+        assertFaster(count + " SKU details into the catalog", parserNanos, jsonNanos);
+    }
+
+    private static long checksum(IabPurchase purchase) {
+        return purchase.getSku().length() + purchase.getToken().length() + purchase.getOrderId().length()
+                + purchase.getPackageName().length() + purchase.getPurchaseTime() + purchase.getPurchaseState()
+                + purchase.getDeveloperPayload().length();
+    }
+
+    private static void assertFaster(String what, long parserNanos, long jsonNanos) {
+        assertTrue(String.format("%s: parser %.2fms, JSONObject %.2fms", what, parserNanos / 1e6, jsonNanos / 1e6),
+                parserNanos < jsonNanos);
+    }
+}
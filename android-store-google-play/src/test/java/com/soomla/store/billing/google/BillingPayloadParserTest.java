@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabPurchase;
+import com.soomla.store.billing.IabSkuDetails;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class BillingPayloadParserTest {
+
+    // purchase data as Google Play returns it in INAPP_PURCHASE_DATA_LIST
+    static final String[] PURCHASES = {
+            "{\"orderId\":\"GPA.1234-5678-9012-34567\",\"packageName\":\"com.example.game\","
+                    + "\"productId\":\"gem_pack_100\",\"purchaseTime\":1467029412345,\"purchaseState\":0,"
+                    + "\"developerPayload\":\"payload-1\","
+                    + "\"purchaseToken\":\"opaque-token-up-to-150-characters.AO-J1OxW3vS8b-Qyx1cLZ7n\"}",
+            // test purchases have no orderId
+            "{\"packageName\":\"com.example.game\",\"productId\":\"android.test.purchased\","
+                    + "\"purchaseTime\":1467029412345,\"purchaseState\":0,"
+                    + "\"purchaseToken\":\"inapp:com.example.game:android.test.purchased\"}",
+            // refunded, with a JSON developer payload
+            "{\"orderId\":\"12999763169054705758.1371079406387615\",\"packageName\":\"com.example.game\","
+                    + "\"productId\":\"no_ads\",\"purchaseTime\":1345678900000,\"purchaseState\":2,"
+                    + "\"developerPayload\":\"{\\\"user\\\":\\\"u\\u00e9 42\\\",\\\"tags\\\":[1,2]}\","
+                    + "\"purchaseToken\":\"rojeslcdyyiapnqcynkjyyjh\"}",
+            // subscription, with fields the purchase doesn't keep
+            "{\n  \"orderId\": \"GPA.3344-5566-7788-99001..0\",\n  \"packageName\": \"com.example.game\",\n"
+                    + "  \"productId\": \"monthly_vip\",\n  \"purchaseTime\": 1467029412345,\n"
+                    + "  \"purchaseState\": 0,\n  \"developerPayload\": \"\",\n"
+                    + "  \"purchaseToken\": \"sub-token\",\n  \"autoRenewing\": true\n}",
+            // numbers sent as strings
+            "{\"orderId\":\"GPA.1\",\"packageName\":\"com.example.game\",\"productId\":\"coins\","
+                    + "\"purchaseTime\":\"1467029412345\",\"purchaseState\":\"1\",\"purchaseToken\":\"t\"}",
+            // the old token field
+            "{\"orderId\":\"GPA.2\",\"packageName\":\"com.example.game\",\"productId\":\"coins\","
+                    + "\"purchaseTime\":1467029412345,\"purchaseState\":0,\"token\":\"old-token\"}",
+    };
+
+    // SKU details as Google Play returns them in DETAILS_LIST
+    static final String[] SKU_DETAILS = {
+            "{\"productId\":\"gem_pack_100\",\"type\":\"inapp\",\"price\":\"$0.99\","
+                    + "\"price_amount_micros\":990000,\"price_currency_code\":\"USD\","
+                    + "\"title\":\"100 Gems (Example Game)\",\"description\":\"A small pile of gems.\"}",
+            "{\"productId\":\"gem_pack_500\",\"type\":\"inapp\",\"price\":\"3,99\u00a0\u20ac\","
+                    + "\"price_amount_micros\":3990000,\"price_currency_code\":\"EUR\","
+                    + "\"title\":\"500 Gems (Example Game)\",\"description\":\"Line one\\nLine two \\\"quoted\\\"\"}",
+            "{\"productId\":\"monthly_vip\",\"type\":\"subs\",\"price\":\"\\u20aa14.90\","
+                    + "\"price_amount_micros\":14900000,\"price_currency_code\":\"ILS\","
+                    + "\"title\":\"VIP\",\"description\":\"\",\"subscriptionPeriod\":\"P1M\","
+                    + "\"freeTrialPeriod\":\"P1W\",\"introductoryPriceCycles\":1}",
+            "{\"productId\":\"no_ads\",\"type\":\"inapp\",\"price\":\"\u00a5120\","
+                    + "\"price_amount_micros\":\"120000000\",\"price_currency_code\":\"JPY\","
+                    + "\"title\":\"No ads\",\"description\":\"\u5e83\u544a\u306a\u3057\"}",
+    };
+
+    private static final String[] FIELDS = { "s", "n", "missing" };
+
+    private BillingPayloadParser mParser;
+    private String[] mStrings;
+    private long[] mNumbers;
+
+    @Before
+    public void setUp() {
+        mParser = new BillingPayloadParser();
+        mStrings = new String[FIELDS.length];
+        mNumbers = new long[FIELDS.length];
+    }
+
+    @Test
+    public void readsStringsAndNumbers() {
+        mParser.parse("{\"s\":\"value\",\"n\":42}", FIELDS, mStrings, mNumbers);
+        assertEquals("value", mStrings[0]);
+        assertEquals(42, mNumbers[1]);
+        assertNull(mStrings[2]);
+        assertEquals(0, mNumbers[2]);
+    }
+
+    @Test
+    public void readsNumbersSentAsStrings() {
+        mParser.parse("{\"s\":\"123\",\"n\":\"-7\"}", FIELDS, mStrings, mNumbers);
+        assertEquals("123", mStrings[0]);
+        assertEquals(123, mNumbers[0]);
+        assertEquals(-7, mNumbers[1]);
+
+        mParser.parse("{\"s\":\" 12.9 \",\"n\":\"1e3\"}", FIELDS, mStrings, mNumbers);
+        assertEquals(12, mNumbers[0]);
+        assertEquals(1000, mNumbers[1]);
+
+        mParser.parse("{\"s\":\"abc\",\"n\":\"\"}", FIELDS, mStrings, mNumbers);
+        assertEquals("abc", mStrings[0]);
+        assertEquals(0, mNumbers[0]);
+        assertEquals(0, mNumbers[1]);
+    }
+
+    @Test
+    public void readsNumberForms() {
+        mParser.parse("{\"n\":-15}", FIELDS, mStrings, mNumbers);
+        assertEquals(-15, mNumbers[1]);
+        mParser.parse("{\"n\":12.75}", FIELDS, mStrings, mNumbers);
+        assertEquals(12, mNumbers[1]);
+        mParser.parse("{\"n\":2.5E2}", FIELDS, mStrings, mNumbers);
+        assertEquals(250, mNumbers[1]);
+        mParser.parse("{\"n\":9223372036854775807}", FIELDS, mStrings, mNumbers);
+        assertEquals(Long.MAX_VALUE, mNumbers[1]);
+    }
+
+    @Test
+    public void unescapesStrings() {
+        mParser.parse("{\"s\":\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u20AC\"}", FIELDS, mStrings, mNumbers);
+        assertEquals("a\"b\\c/d\n\t\u00e9\u20ac", mStrings[0]);
+    }
+
+    @Test
+    public void matchesEscapedKeys() {
+        mParser.parse("{\"\\u0073\":\"escaped key\"}", FIELDS, mStrings, mNumbers);
+        assertEquals("escaped key", mStrings[0]);
+    }
+
+    @Test
+    public void skipsOtherValues() {
+        mParser.parse("{\"a\":{\"s\":\"nested\",\"x\":[1,{\"y\":\"}]\"}]},\"b\":[\"s\",\"{\"],"
+                + "\"c\":true,\"d\":null,\"e\":-1.5e10,\"s\":\"top\"}", FIELDS, mStrings, mNumbers);
+        assertEquals("top", mStrings[0]);
+        assertEquals(0, mNumbers[1]);
+    }
+
+    @Test
+    public void nonNumericValuesOfNumberFieldsAreZero() {
+        mParser.parse("{\"n\":true,\"s\":null}", FIELDS, mStrings, mNumbers);
+        assertEquals(0, mNumbers[1]);
+        assertNull(mStrings[0]);
+    }
+
+    @Test
+    public void allowsWhitespaceAndEmptyObjects() {
+        mParser.parse(" \n{ \"s\" :\t\"v\" ,\r\n \"n\" : 3 }\n", FIELDS, mStrings, mNumbers);
+        assertEquals("v", mStrings[0]);
+        assertEquals(3, mNumbers[1]);
+
+        mParser.parse("{ }", FIELDS, mStrings, mNumbers);
+        assertNull(mStrings[0]);
+        assertEquals(0, mNumbers[1]);
+    }
+
+    @Test
+    public void worksWithoutNumbers() {
+        mParser.parse("{\"s\":\"v\",\"n\":3}", FIELDS, mStrings, null);
+        assertEquals("v", mStrings[0]);
+    }
+
+    @Test
+    public void resetsValuesBetweenObjects() {
+        mParser.parse("{\"s\":\"first\",\"n\":1}", FIELDS, mStrings, mNumbers);
+        mParser.parse("{\"missing\":\"x\"}", FIELDS, mStrings, mNumbers);
+        assertNull(mStrings[0]);
+        assertEquals(0, mNumbers[1]);
+        assertEquals("x", mStrings[2]);
+    }
+
+    @Test
+    public void rejectsMalformedJson() {
+        String[] malformed = {
+                "", "[]", "\"s\"", "{", "{\"s\"", "{\"s\":", "{\"s\":\"v\"", "{\"s\" \"v\"}",
+                "{\"s\":\"v\" \"n\":1}", "{s:\"v\"}", "{\"s\":\"\\u12\"}", "{\"s\":\"v\",}" };
+        for (String json : malformed) {
+            try {
+                mParser.parse(json, FIELDS, mStrings, mNumbers);
+                fail("Accepted malformed JSON: " + json);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void purchasesMatchIabPurchase() throws Exception {
+        for (String json : PURCHASES) {
+            IabPurchase expected = new IabPurchase(IabHelper.ITEM_TYPE_INAPP, json, "signature");
+            IabPurchase actual = ParsedIabPurchase.fromJson(IabHelper.ITEM_TYPE_INAPP, json, "signature", mParser);
+
+            assertEquals(json, expected.getSku(), actual.getSku());
+            assertEquals(json, expected.getToken(), actual.getToken());
+            assertEquals(json, expected.getOrderId(), actual.getOrderId());
+            assertEquals(json, expected.getPackageName(), actual.getPackageName());
+            assertEquals(json, expected.getPurchaseTime(), actual.getPurchaseTime());
+            assertEquals(json, expected.getPurchaseState(), actual.getPurchaseState());
+            assertEquals(json, expected.getDeveloperPayload(), actual.getDeveloperPayload());
+            assertEquals(json, expected.getOriginalJson(), actual.getOriginalJson());
+            assertEquals(json, expected.getSignature(), actual.getSignature());
+            assertEquals(json, expected.getItemType(), actual.getItemType());
+        }
+    }
+
+    @Test
+    public void skuDetailsMatchIabSkuDetails() throws Exception {
+        for (String json : SKU_DETAILS) {
+            IabSkuDetails expected = new IabSkuDetails(IabHelper.ITEM_TYPE_INAPP, json);
+            IabSkuDetails actual = LazyIabSkuDetails.fromJson(IabHelper.ITEM_TYPE_INAPP, json, mParser);
+
+            assertEquals(json, expected.getSku(), actual.getSku());
+            assertEquals(json, expected.getType(), actual.getType());
+            assertEquals(json, expected.getPrice(), actual.getPrice());
+            assertEquals(json, expected.getPriceMicros(), actual.getPriceMicros());
+            assertEquals(json, expected.getCurrencyCode(), actual.getCurrencyCode());
+            assertEquals(json, expected.getTitle(), actual.getTitle());
+            assertEquals(json, expected.getDescription(), actual.getDescription());
+            assertEquals(json, expected.getItemType(), actual.getItemType());
+        }
+    }
+}
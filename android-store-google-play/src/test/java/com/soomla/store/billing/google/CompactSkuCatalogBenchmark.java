@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabSkuDetails;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the heap held when the fetched SKU details are handed to the store, for 10k SKUs:
+ * with the details fully parsed and copied out of the catalog, and with the catalog built from
+ * the raw JSON and handed out as views. Fails if the catalogs differ, or if the views don't
+ * save heap. The numbers come from <code>Runtime</code> after forced collections, so they're
+ * approximate.
+ *
+ * Runs only with <code>./gradlew test -Pbenchmarks</code>.
+ */
+public class CompactSkuCatalogBenchmark {
+
+    private static final int COUNT = 10000;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("soomla.benchmarks"));
+    }
+
+    @Test
+    public void heapWhenHandingDetailsToTheStore() throws Exception {
+        long base = usedHeap();
+        List<IabSkuDetails> fetched = fetch();
+        long fetchedHeap = usedHeap() - base;
+
+        // fully parsed details, and a copy of each one out of the catalog
+        for (IabSkuDetails details : fetched) {
+            details.getPrice();
+        }
+        CompactSkuCatalog copiedCatalog = CompactSkuCatalog.fromSkuDetails(fetched);
+        List<IabSkuDetails> copies = new ArrayList<IabSkuDetails>(copiedCatalog.size());
+        for (int i = 0; i < copiedCatalog.size(); i++) {
+            copies.add(new IabSkuDetails(copiedCatalog.getItemTypeAt(i), copiedCatalog.getSkuAt(i),
+                    copiedCatalog.getPriceAt(i), copiedCatalog.getTitleAt(i), copiedCatalog.getDescriptionAt(i),
+                    copiedCatalog.getPriceMicrosAt(i), copiedCatalog.getCurrencyCodeAt(i)));
+        }
+        long copiedHeap = usedHeap() - base;
+        int copiedSize = copies.size();
+        fetched = null;
+        copies = null;
+
+        // the catalog built from the raw JSON, with views over it
+        base = usedHeap();
+        fetched = fetch();
+        CompactSkuCatalog catalog = CompactSkuCatalog.fromSkuDetails(fetched);
+        List<IabSkuDetails> views = catalog.getAllSkuDetails();
+        long viewsHeap = usedHeap() - base;
+        fetched = null;
+        long catalogHeap = usedHeap() - base;
+
+        assertEquals(copiedSize, views.size());
+        assertEquals(copiedCatalog.getAllSkus(), catalog.getAllSkus());
+        assertTrue(String.format("%d SKU details: fetched %dKB, parsed and copied %dKB, "
+                        + "views over the catalog %dKB, catalog alone %dKB",
+                COUNT, fetchedHeap / 1024, copiedHeap / 1024, viewsHeap / 1024, catalogHeap / 1024),
+                viewsHeap < copiedHeap);
+    }
+
+    private static List<IabSkuDetails> fetch() throws Exception {
+        BillingPayloadParser parser = new BillingPayloadParser();
+        List<IabSkuDetails> fetched = new ArrayList<IabSkuDetails>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            String json = BillingPayloadParserTest.SKU_DETAILS[i % BillingPayloadParserTest.SKU_DETAILS.length]
+                    .replace("\"productId\":\"", "\"productId\":\"" + i + "_");
+            fetched.add(LazyIabSkuDetails.fromJson(IabHelper.ITEM_TYPE_INAPP, json, parser));
+        }
+        return fetched;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import com.soomla.store.billing.IabHelper;
+import com.soomla.store.billing.IabSkuDetails;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactSkuCatalogTest {
+
+    private CompactSkuCatalog mCatalog;
+
+    @Before
+    public void setUp() throws Exception {
+        List<IabSkuDetails> skuDetails = new ArrayList<IabSkuDetails>();
+        for (String json : BillingPayloadParserTest.SKU_DETAILS) {
+            skuDetails.add(LazyIabSkuDetails.fromJson(itemTypeOf(json), json));
+        }
+        mCatalog = CompactSkuCatalog.fromSkuDetails(skuDetails);
+    }
+
+    @Test
+    public void keepsEveryFieldOfParsedDetails() throws Exception {
+        assertEquals(BillingPayloadParserTest.SKU_DETAILS.length, mCatalog.size());
+        for (String json : BillingPayloadParserTest.SKU_DETAILS) {
+            IabSkuDetails expected = new IabSkuDetails(itemTypeOf(json), json);
+            IabSkuDetails actual = mCatalog.getSkuDetails(expected.getSku());
+
+            assertEquals(json, expected.getSku(), actual.getSku());
+            assertEquals(json, expected.getItemType(), actual.getItemType());
+            assertEquals(json, expected.getType(), actual.getType());
+            assertEquals(json, expected.getPrice(), actual.getPrice());
+            assertEquals(json, expected.getPriceMicros(), actual.getPriceMicros());
+            assertEquals(json, expected.getCurrencyCode(), actual.getCurrencyCode());
+            assertEquals(json, expected.getTitle(), actual.getTitle());
+            assertEquals(json, expected.getDescription(), actual.getDescription());
+        }
+    }
+
+    @Test
+    public void keepsTheJsonVerbatim() throws Exception {
+        for (String json : BillingPayloadParserTest.SKU_DETAILS) {
+            String sku = new JSONObject(json).optString("productId");
+            assertEquals(json, mCatalog.getSkuDetails(sku).getJson());
+            assertEquals(json, mCatalog.getJsonAt(mCatalog.indexOf(sku)));
+        }
+    }
+
+    @Test
+    public void buildsTheJsonOfDetailsWithoutJson() throws Exception {
+        CompactSkuCatalog catalog = new CompactSkuCatalog.Builder()
+                .add(new IabSkuDetails(IabHelper.ITEM_TYPE_INAPP, "a", "$1", "A", "bee \"b\"", 1000000, "USD"))
+                .build();
+        IabSkuDetails details = catalog.getSkuDetails("a");
+        IabSkuDetails reparsed = new IabSkuDetails(details.getItemType(), details.getJson());
+        assertEquals("a", reparsed.getSku());
+        assertEquals(IabHelper.ITEM_TYPE_INAPP, reparsed.getType());
+        assertEquals("$1", reparsed.getPrice());
+        assertEquals("A", reparsed.getTitle());
+        assertEquals("bee \"b\"", reparsed.getDescription());
+        assertEquals(1000000, reparsed.getPriceMicros());
+        assertEquals("USD", reparsed.getCurrencyCode());
+    }
+
+    @Test
+    public void acceptsDetailsWithoutJson() {
+        CompactSkuCatalog catalog = new CompactSkuCatalog.Builder()
+                .add(new IabSkuDetails(IabHelper.ITEM_TYPE_INAPP, "b", "$2", "B", "bee", 2000000, "USD"))
+                .add(new IabSkuDetails(IabHelper.ITEM_TYPE_INAPP, "a", "$1", "A", null, 1000000, "USD"))
+                .build();
+        assertEquals(Arrays.asList("a", "b"), catalog.getAllSkus());
+        assertEquals("", catalog.getSkuDetails("a").getDescription());
+        assertEquals("bee", catalog.getSkuDetails("b").getDescription());
+    }
+
+    @Test
+    public void duplicateSkusKeepTheirLastDetails() {
+        CompactSkuCatalog catalog = new CompactSkuCatalog.Builder()
+                .add(new IabSkuDetails(IabHelper.ITEM_TYPE_INAPP, "a", "$1", "Old", "old", 1000000, "USD"))
+                .add(new IabSkuDetails(IabHelper.ITEM_TYPE_SUBS, "a", "3 \u20ac", "New", "new", 3000000, "EUR"))
+                .build();
+        assertEquals(1, catalog.size());
+        IabSkuDetails details = catalog.getSkuDetails("a");
+        assertEquals(IabHelper.ITEM_TYPE_SUBS, details.getItemType());
+        assertEquals("New", details.getTitle());
+        assertEquals("new", details.getDescription());
+        assertEquals(3000000, details.getPriceMicros());
+        assertEquals("EUR", details.getCurrencyCode());
+    }
+
+    @Test
+    public void looksUpSkus() {
+        assertTrue(mCatalog.hasDetails("no_ads"));
+        assertFalse(mCatalog.hasDetails("missing"));
+        assertNull(mCatalog.getSkuDetails("missing"));
+        assertEquals(-1, mCatalog.indexOf("missing"));
+        assertEquals("no_ads", mCatalog.getSkuAt(mCatalog.indexOf("no_ads")));
+    }
+
+    @Test
+    public void listsSkusByPriceTypeAndCurrency() {
+        assertEquals(Arrays.asList("gem_pack_100", "gem_pack_500", "monthly_vip", "no_ads"),
+                skusOf(mCatalog.getAllSkuDetails()));
+        assertEquals(Arrays.asList("gem_pack_100", "gem_pack_500", "monthly_vip", "no_ads"),
+                skusOf(mCatalog.getSkuDetailsByPrice()));
+        assertEquals(Arrays.asList("monthly_vip"), skusOf(mCatalog.getSkuDetailsByItemType(IabHelper.ITEM_TYPE_SUBS)));
+        assertEquals(Arrays.asList("gem_pack_500"), skusOf(mCatalog.getSkuDetailsByCurrency("EUR")));
+        assertTrue(mCatalog.getSkuDetailsByCurrency("GBP").isEmpty());
+        assertEquals(Arrays.asList("gem_pack_500", "monthly_vip"),
+                skusOf(mCatalog.getSkuDetailsInPriceRange(null, 990001, 14900000)));
+        assertEquals(Arrays.asList("gem_pack_100", "gem_pack_500", "no_ads"),
+                skusOf(mCatalog.getSkuDetailsInPriceRange(IabHelper.ITEM_TYPE_INAPP, 0, Long.MAX_VALUE)));
+        assertTrue(mCatalog.getSkuDetailsInPriceRange(null, 5, 4).isEmpty());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void listsAreBounded() {
+        List<IabSkuDetails> byCurrency = mCatalog.getSkuDetailsByCurrency("USD");
+        assertEquals(1, byCurrency.size());
+        byCurrency.get(1);
+    }
+
+    private static List<String> skusOf(List<IabSkuDetails> skuDetails) {
+        List<String> skus = new ArrayList<String>();
+        for (IabSkuDetails details : skuDetails) {
+            skus.add(details.getSku());
+        }
+        return skus;
+    }
+
+    private static String itemTypeOf(String json) throws Exception {
+        return new JSONObject(json).optString("type");
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeferredKeyValueStorageTest {
+
+    private static final int WRITES = 10;
+    private static final long WRITE_MILLIS = 20;
+
+    private SlowBackend mBackend;
+
+    @Before
+    public void setUp() {
+        mBackend = new SlowBackend();
+        DeferredKeyValueStorage.setBackend(mBackend);
+    }
+
+    @After
+    public void tearDown() {
+        DeferredKeyValueStorage.flush();
+    }
+
+    @Test
+    public void writesDontWaitForTheStorage() {
+        long start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++) {
+            mBackend.setValue("sync." + i, "value" + i);
+        }
+        long syncMillis = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (int i = 0; i < WRITES; i++) {
+            DeferredKeyValueStorage.setValue("deferred." + i, "value" + i);
+        }
+        long deferredMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("synchronous " + syncMillis + "ms, deferred " + deferredMillis + "ms",
+                deferredMillis < WRITE_MILLIS && syncMillis >= WRITES * WRITE_MILLIS);
+
+        DeferredKeyValueStorage.flush();
+        for (int i = 0; i < WRITES; i++) {
+            assertEquals("value" + i, mBackend.mValues.get("deferred." + i));
+        }
+    }
+
+    @Test
+    public void readsSeePendingWrites() {
+        DeferredKeyValueStorage.setValue("key", "value");
+        assertEquals("value", DeferredKeyValueStorage.getValue("key"));
+
+        DeferredKeyValueStorage.deleteKeyValue("key");
+        assertNull(DeferredKeyValueStorage.getValue("key"));
+
+        DeferredKeyValueStorage.flush();
+        assertNull(mBackend.getValue("key"));
+    }
+
+    @Test
+    public void flushPersistsTheLastWrite() {
+        DeferredKeyValueStorage.setValue("key", "first");
+        DeferredKeyValueStorage.setValue("key", "last");
+
+        DeferredKeyValueStorage.flush();
+
+        assertEquals("last", mBackend.getValue("key"));
+        assertEquals("last", DeferredKeyValueStorage.getValue("key"));
+    }
+
+    /**
+     * In-memory storage that takes as long as a slow flash write.
+     */
+    private static class SlowBackend implements DeferredKeyValueStorage.Backend {
+
+        @Override
+        public synchronized String getValue(String key) {
+            return mValues.get(key);
+        }
+
+        @Override
+        public void setValue(String key, String val) {
+            sleep();
+            synchronized (this) {
+                mValues.put(key, val);
+            }
+        }
+
+        @Override
+        public void deleteKeyValue(String key) {
+            sleep();
+            synchronized (this) {
+                mValues.remove(key);
+            }
+        }
+
+        private static void sleep() {
+            try {
+                Thread.sleep(WRITE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private final Map<String, String> mValues = new HashMap<String, String>();
+    }
+}
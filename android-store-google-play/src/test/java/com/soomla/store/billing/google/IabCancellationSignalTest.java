@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IabCancellationSignalTest {
+
+    private IabCancellationSignal mSignal;
+
+    @Before
+    public void setUp() {
+        mSignal = new IabCancellationSignal();
+    }
+
+    @Test
+    public void cancelsEveryCallInFlight() {
+        FutureTask<Integer> first = newCall();
+        FutureTask<Integer> second = newCall();
+        mSignal.addCall(first);
+        mSignal.addCall(second);
+
+        mSignal.cancel();
+
+        assertTrue(mSignal.isCanceled());
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+    }
+
+    @Test
+    public void leavesRemovedCallsAlone() {
+        FutureTask<Integer> done = newCall();
+        FutureTask<Integer> running = newCall();
+        mSignal.addCall(done);
+        mSignal.addCall(running);
+        mSignal.removeCall(done);
+
+        mSignal.cancel();
+
+        assertFalse(done.isCancelled());
+        assertTrue(running.isCancelled());
+    }
+
+    @Test
+    public void cancelsCallsAddedAfterCancel() {
+        mSignal.cancel();
+
+        FutureTask<Integer> late = newCall();
+        mSignal.addCall(late);
+
+        assertTrue(late.isCancelled());
+    }
+
+    private static FutureTask<Integer> newCall() {
+        return new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return 0;
+            }
+        });
+    }
+}
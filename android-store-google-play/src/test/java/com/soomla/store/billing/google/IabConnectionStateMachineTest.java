@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IabConnectionStateMachineTest {
+
+    private IabConnectionStateMachine mMachine;
+
+    @Before
+    public void setUp() {
+        mMachine = new IabConnectionStateMachine();
+    }
+
+    @Test
+    public void startsDisconnected() {
+        assertEquals(IabConnectionStateMachine.State.DISCONNECTED, mMachine.getState());
+        assertEquals(0, mMachine.getLeaseCount());
+    }
+
+    @Test
+    public void transitionFailsFromAnotherState() {
+        assertFalse(mMachine.transition(IabConnectionStateMachine.State.READY,
+                IabConnectionStateMachine.State.DISPOSING));
+        assertEquals(IabConnectionStateMachine.State.DISCONNECTED, mMachine.getState());
+    }
+
+    @Test
+    public void acquireNeedsReady() {
+        assertFalse(mMachine.acquire());
+        mMachine.transition(IabConnectionStateMachine.State.DISCONNECTED, IabConnectionStateMachine.State.BINDING);
+        assertFalse(mMachine.acquire());
+        mMachine.transition(IabConnectionStateMachine.State.BINDING, IabConnectionStateMachine.State.READY);
+        assertTrue(mMachine.acquire());
+        assertEquals(1, mMachine.getLeaseCount());
+    }
+
+    @Test
+    public void leaseBlocksDisposing() {
+        toReady();
+        assertTrue(mMachine.acquire());
+        assertTrue(mMachine.acquire());
+
+        assertFalse(mMachine.transition(IabConnectionStateMachine.State.READY,
+                IabConnectionStateMachine.State.DISPOSING));
+        mMachine.release();
+        assertFalse(mMachine.transition(IabConnectionStateMachine.State.READY,
+                IabConnectionStateMachine.State.DISPOSING));
+        mMachine.release();
+        assertTrue(mMachine.transition(IabConnectionStateMachine.State.READY,
+                IabConnectionStateMachine.State.DISPOSING));
+        assertFalse(mMachine.acquire());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releaseWithoutLeaseThrows() {
+        toReady();
+        mMachine.release();
+    }
+
+    @Test
+    public void waitersAreNotifiedOfReady() {
+        mMachine.transition(IabConnectionStateMachine.State.DISCONNECTED, IabConnectionStateMachine.State.BINDING);
+        RecordingWaiter waiter = new RecordingWaiter();
+        mMachine.whenReady(waiter);
+        assertEquals(0, waiter.mReady.get());
+
+        mMachine.transition(IabConnectionStateMachine.State.BINDING, IabConnectionStateMachine.State.READY);
+        assertEquals(1, waiter.mReady.get());
+        assertEquals(0, waiter.mFailed.get());
+    }
+
+    @Test
+    public void waitersAreNotifiedOfFailure() {
+        mMachine.transition(IabConnectionStateMachine.State.DISCONNECTED, IabConnectionStateMachine.State.BINDING);
+        RecordingWaiter waiter = new RecordingWaiter();
+        mMachine.whenReady(waiter);
+
+        mMachine.transition(IabConnectionStateMachine.State.BINDING,
+                IabConnectionStateMachine.State.DISCONNECTED, "no billing");
+        assertEquals(0, waiter.mReady.get());
+        assertEquals(1, waiter.mFailed.get());
+    }
+
+    @Test
+    public void disposalCallbacksRunWhenDisposed() {
+        toReady();
+        mMachine.transition(IabConnectionStateMachine.State.READY, IabConnectionStateMachine.State.DISPOSING);
+        final AtomicInteger runs = new AtomicInteger();
+        mMachine.whenNotDisposing(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        assertEquals(0, runs.get());
+
+        mMachine.transition(IabConnectionStateMachine.State.DISPOSING, IabConnectionStateMachine.State.DISCONNECTED);
+        assertEquals(1, runs.get());
+
+        mMachine.whenNotDisposing(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        assertEquals(2, runs.get());
+    }
+
+    /**
+     * Runs starts, stops and queries from many threads, the way <code>GooglePlayIabService</code>
+     * does, and checks that no helper is disposed while it's in use.
+     */
+    @Test(timeout = 60000)
+    public void startStopQueryStress() throws Exception {
+        final int threads = 8;
+        final int rounds = 5000;
+        final AtomicReference<FakeHelper> helperRef = new AtomicReference<FakeHelper>();
+        final AtomicInteger queries = new AtomicInteger();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int i = 0; i < rounds; i++) {
+                            if ((i + thread) % 3 == 0) {
+                                stop(helperRef);
+                            } else {
+                                FakeHelper helper = startAndQuery(helperRef);
+                                if (helper != null) {
+                                    queries.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        go.countDown();
+        assertTrue("stress test didn't finish", done.await(50, TimeUnit.SECONDS));
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+        assertTrue(queries.get() > 0);
+        assertEquals(0, mMachine.getLeaseCount());
+        IabConnectionStateMachine.State state = mMachine.getState();
+        assertTrue(state == IabConnectionStateMachine.State.READY
+                || state == IabConnectionStateMachine.State.DISCONNECTED);
+    }
+
+    /**
+     * Starts the connection if needed, then starts a query on the helper while holding a lease.
+     */
+    private FakeHelper startAndQuery(AtomicReference<FakeHelper> helperRef) throws InterruptedException {
+        while (true) {
+            switch (mMachine.getState()) {
+                case READY:
+                    if (mMachine.acquire()) {
+                        FakeHelper helper;
+                        try {
+                            helper = helperRef.get();
+                            if (helper == null || helper.mDisposed) {
+                                fail("Leased a helper that's disposed.");
+                            }
+                            // the operation starts under the lease, and goes on after it's released
+                            helper.startOperation();
+                        } finally {
+                            mMachine.release();
+                        }
+                        helper.finishOperation();
+                        return helper;
+                    }
+                    break;
+
+                case BINDING:
+                    final CountDownLatch ready = new CountDownLatch(1);
+                    mMachine.whenReady(new IabConnectionStateMachine.Waiter() {
+                        @Override
+                        public void onReady() {
+                            ready.countDown();
+                        }
+
+                        @Override
+                        public void onFailed(String message) {
+                            ready.countDown();
+                        }
+                    });
+                    ready.await();
+                    break;
+
+                case DISCONNECTED:
+                    if (mMachine.transition(IabConnectionStateMachine.State.DISCONNECTED,
+                            IabConnectionStateMachine.State.BINDING)) {
+                        helperRef.set(new FakeHelper());
+                        mMachine.transition(IabConnectionStateMachine.State.BINDING,
+                                IabConnectionStateMachine.State.READY);
+                    }
+                    break;
+
+                case DISPOSING:
+                    final CountDownLatch disposed = new CountDownLatch(1);
+                    mMachine.whenNotDisposing(new Runnable() {
+                        @Override
+                        public void run() {
+                            disposed.countDown();
+                        }
+                    });
+                    disposed.await();
+                    break;
+            }
+        }
+    }
+
+    private void stop(AtomicReference<FakeHelper> helperRef) {
+        if (!mMachine.transition(IabConnectionStateMachine.State.READY, IabConnectionStateMachine.State.DISPOSING)) {
+            return;
+        }
+        FakeHelper helper = helperRef.get();
+        if (helper.mInProgress.get() > 0) {
+            mMachine.transition(IabConnectionStateMachine.State.DISPOSING, IabConnectionStateMachine.State.READY);
+            return;
+        }
+        helperRef.set(null);
+        helper.dispose();
+        mMachine.transition(IabConnectionStateMachine.State.DISPOSING, IabConnectionStateMachine.State.DISCONNECTED);
+    }
+
+    private void toReady() {
+        mMachine.transition(IabConnectionStateMachine.State.DISCONNECTED, IabConnectionStateMachine.State.BINDING);
+        mMachine.transition(IabConnectionStateMachine.State.BINDING, IabConnectionStateMachine.State.READY);
+    }
+
+    private static class FakeHelper {
+
+        void startOperation() {
+            mInProgress.incrementAndGet();
+        }
+
+        void finishOperation() {
+            try {
+                Thread.yield();
+                if (mDisposed) {
+                    fail("Disposed a helper while its operation was running.");
+                }
+            } finally {
+                mInProgress.decrementAndGet();
+            }
+        }
+
+        void dispose() {
+            if (mInProgress.get() > 0) {
+                fail("Disposed a helper with an operation in progress.");
+            }
+            mDisposed = true;
+        }
+
+        private final AtomicInteger mInProgress = new AtomicInteger();
+        private volatile boolean mDisposed;
+    }
+
+    private static class RecordingWaiter implements IabConnectionStateMachine.Waiter {
+
+        @Override
+        public void onReady() {
+            mReady.incrementAndGet();
+        }
+
+        @Override
+        public void onFailed(String message) {
+            mFailed.incrementAndGet();
+        }
+
+        private final AtomicInteger mReady = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+    }
+}
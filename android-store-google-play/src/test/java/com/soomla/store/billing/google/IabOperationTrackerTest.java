@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IabOperationTrackerTest {
+
+    private IabOperationTracker mTracker;
+
+    @Before
+    public void setUp() {
+        mTracker = new IabOperationTracker();
+    }
+
+    @Test
+    public void mapsOperationNames() {
+        assertEquals(IabOperationTracker.Kind.RESTORE, IabOperationTracker.Kind.fromOperationName("restore purchases"));
+        assertEquals(IabOperationTracker.Kind.FETCH_SKUS, IabOperationTracker.Kind.fromOperationName("fetch skus details"));
+        assertEquals(IabOperationTracker.Kind.CONSUME, IabOperationTracker.Kind.fromOperationName("consume"));
+        assertEquals(IabOperationTracker.Kind.PURCHASE, IabOperationTracker.Kind.fromOperationName("launchPurchaseFlow"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mutatingOperationsAreSerialized() {
+        mTracker.start(IabOperationTracker.Kind.PURCHASE, "launchPurchaseFlow");
+        mTracker.start(IabOperationTracker.Kind.CONSUME, "consume");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void oneReadOnlyOperationOfEachKind() {
+        mTracker.start(IabOperationTracker.Kind.RESTORE, "restore purchases");
+        mTracker.start(IabOperationTracker.Kind.RESTORE, "restore purchases");
+    }
+
+    @Test
+    public void readOnlyOperationsRunAlongsideOthers() {
+        mTracker.start(IabOperationTracker.Kind.PURCHASE, "launchPurchaseFlow");
+        mTracker.start(IabOperationTracker.Kind.RESTORE, "restore purchases");
+        mTracker.start(IabOperationTracker.Kind.FETCH_SKUS, "fetch skus details");
+        assertEquals(1, mTracker.getRunningCount(IabOperationTracker.Kind.RESTORE));
+        assertEquals(1, mTracker.getRunningCount(IabOperationTracker.Kind.FETCH_SKUS));
+    }
+
+    @Test
+    public void backgroundOperationsDontBlockButKeepBusy() {
+        mTracker.startBackground(IabOperationTracker.Kind.CONSUME);
+        assertTrue(mTracker.isAnyRunning());
+        mTracker.start(IabOperationTracker.Kind.CONSUME, "consume");
+        mTracker.end(IabOperationTracker.Kind.CONSUME);
+        assertTrue(mTracker.isAnyRunning());
+
+        mTracker.endBackground(IabOperationTracker.Kind.CONSUME);
+        assertFalse(mTracker.isAnyRunning());
+    }
+
+    @Test
+    public void endWithoutStartIsIgnored() {
+        mTracker.end(IabOperationTracker.Kind.PURCHASE);
+        mTracker.endBackground(IabOperationTracker.Kind.PURCHASE);
+        assertEquals(0, mTracker.getRunningCount(IabOperationTracker.Kind.PURCHASE));
+        assertFalse(mTracker.isAnyRunning());
+    }
+
+    /**
+     * Races mutating operations from many threads and checks that at most one runs at a time.
+     */
+    @Test(timeout = 60000)
+    public void mutatingOperationsStress() throws Exception {
+        final int threads = 8;
+        final int rounds = 20000;
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger started = new AtomicInteger();
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final IabOperationTracker.Kind kind = t % 2 == 0
+                    ? IabOperationTracker.Kind.PURCHASE : IabOperationTracker.Kind.CONSUME;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int i = 0; i < rounds; i++) {
+                            try {
+                                mTracker.start(kind, kind.name());
+                            } catch (IllegalStateException e) {
+                                continue;
+                            }
+                            started.incrementAndGet();
+                            if (running.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            running.decrementAndGet();
+                            mTracker.end(kind);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        go.countDown();
+        assertTrue(done.await(50, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        assertTrue(started.get() > 0);
+        assertFalse(mTracker.isAnyRunning());
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.soomla.store.billing.google;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class VerificationExtraDataTest {
+
+    @Test
+    public void appendsTheExtraData() throws Exception {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("userId", "u1");
+
+        JSONObject request = new JSONObject(VerificationExtraData.appendTo(
+                "{\"purchaseToken\":\"t1\"}", VerificationExtraData.serializeFields(values)));
+
+        assertEquals("t1", request.getString("purchaseToken"));
+        assertEquals("u1", request.getString("userId"));
+    }
+
+    @Test
+    public void keepsTheRequestFields() throws Exception {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("purchaseToken", "spoofed");
+        values.put("accessToken", "spoofed");
+        values.put("userId", "u1");
+
+        String json = VerificationExtraData.appendTo("{\"purchaseToken\":\"t1\",\"accessToken\":\"a1\"}",
+                VerificationExtraData.serializeFields(values));
+        JSONObject request = new JSONObject(json);
+
+        assertFalse(json.contains("spoofed"));
+        assertEquals("t1", request.getString("purchaseToken"));
+        assertEquals("a1", request.getString("accessToken"));
+        assertEquals("u1", request.getString("userId"));
+    }
+
+    @Test
+    public void leavesTheRequestAloneWhenOnlyReservedKeysAreSet() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("productId", "spoofed");
+
+        assertEquals("{\"productId\":\"p1\"}",
+                VerificationExtraData.appendTo("{\"productId\":\"p1\"}", VerificationExtraData.serializeFields(values)));
+    }
+}